@@ -28,42 +28,30 @@ export class ProjectsPage {
         }
         this.http = http;
         this.utility = utility;
-        this.getProjects();
-        this.getOtherProjects();
-        this.getAssignedTasks();
+        this.getDashboard();
     }
 
-    getProjects() {
+    getDashboard() {
         this.projects = [];
-        this.utility.makeGetRequest("/api/project/getAll", [this.authManager.getAuthToken()]).then((result) => {
-            this.projects = <Array<IProject>> result;
-        }, (error) => {
-            console.error(error);
-        });
-    }
-
-    getOtherProjects() {
         this.otherProjects = [];
-        this.utility.makeGetRequest("/api/project/getOther", [this.authManager.getAuthToken()]).then((result: Array<IProject>) => {
-            this.otherProjects = [];
-            for(var i = 0; i < result.length; i++) {
-                if(result[i].owner._id != this.authManager.getAuthToken()) {
-                    this.otherProjects.push(result[i]);
+        this.assignedTasks = [];
+        this.utility.makeGetRequest("/api/dashboard/get", [this.authManager.getAuthToken()]).then((result: any) => {
+            this.projects = <Array<IProject>> (result.projects || []);
+            var otherProjects: Array<any> = result.otherProjects || [];
+            for(var i = 0; i < otherProjects.length; i++) {
+                if(otherProjects[i].owner != this.authManager.getAuthToken()) {
+                    this.otherProjects.push(otherProjects[i]);
                 }
             }
-        }, (error) => {
-            console.error(error);
-        });
-    }
-
-    getAssignedTasks() {
-        this.utility.makeGetRequest("/api/task/getAssignedTo", [this.authManager.getAuthToken()]).then((result: Array<ITask>) => {
-            this.assignedTasks = [];
-            for(var i = 0; i < result.length; i++) {
-                if(result[i].owner._id != this.authManager.getAuthToken()) {
-                    this.assignedTasks.push(result[i]);
+            var assignedTasks: Array<any> = result.assignedTasks || [];
+            for(var i = 0; i < assignedTasks.length; i++) {
+                if(assignedTasks[i].owner != this.authManager.getAuthToken()) {
+                    this.assignedTasks.push(assignedTasks[i]);
                 }
             }
+            for(var section in result.errors) {
+                console.error(section, result.errors[section]);
+            }
         }, (error) => {
             console.error(error);
         });
@@ -97,22 +97,7 @@ export class TaskPage {
         });
     }
 
-    parseDate(date: string) {
-        var d: Date = new Date(date);
-        var fullMonth = [
-            "January",
-            "February",
-            "March",
-            "April",
-            "May",
-            "June",
-            "July",
-            "August",
-            "September",
-            "October",
-            "November",
-            "December"
-        ];
-        return fullMonth[d.getMonth()] + " " + d.getDate() + ", " + d.getFullYear() + " @ " + d.toLocaleTimeString();
+    parseDate(date: any) {
+        return this.utility.parseDate(date);
     }
 }
@@ -78,4 +78,8 @@ export class TasksPage {
         }
     }
 
+    parseDate(date: any) {
+        return this.utility.parseDate(date);
+    }
+
 }
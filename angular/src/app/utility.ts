@@ -66,6 +66,25 @@ export class Utility {
         });
     }
 
+    parseDate(date: any) {
+        var d: Date = new Date(date);
+        var fullMonth = [
+            "January",
+            "February",
+            "March",
+            "April",
+            "May",
+            "June",
+            "July",
+            "August",
+            "September",
+            "October",
+            "November",
+            "December"
+        ];
+        return fullMonth[d.getMonth()] + " " + d.getDate() + ", " + d.getFullYear() + " @ " + d.toLocaleTimeString();
+    }
+
     private jsonToQueryString(json: Object) {
         return '?' +
             Object.keys(json).map(function(key) {
@@ -4,21 +4,33 @@ import com.couchbase.client.java.Bucket;
 import com.couchbase.client.java.Cluster;
 import com.couchbase.client.java.CouchbaseCluster;
 import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.env.CouchbaseEnvironment;
+import com.couchbase.client.java.env.DefaultCouchbaseEnvironment;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.DependsOn;
 import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import javax.annotation.PostConstruct;
 import javax.servlet.*;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 
 @SpringBootApplication
+@EnableScheduling
 @RestController
 @RequestMapping("/api")
 public class Application implements Filter {
@@ -51,16 +63,107 @@ public class Application implements Filter {
     @Value("${password}")
     private String password;
 
+    @Value("${query.afterWrite}")
+    private boolean queryAfterWrite;
+
+    /*
+     * Mutation tokens are enabled so queries that follow a write can wait for that write alone instead of every mutation in the bucket
+     */
     public @Bean
+    CouchbaseEnvironment couchbaseEnvironment() {
+        return DefaultCouchbaseEnvironment.builder().mutationTokensEnabled(true).build();
+    }
+
+    public @Bean @DependsOn("couchbaseEnvironment")
     Cluster cluster() {
-        return CouchbaseCluster.create(hostname);
+        return CouchbaseCluster.create(couchbaseEnvironment(), hostname);
     }
 
-    public @Bean
+    @Value("${dashboard.threads}")
+    private int dashboardThreads;
+
+    @Value("${dashboard.timeout}")
+    private long dashboardTimeout;
+
+    @Value("${history.buffer.window}")
+    private long historyBufferWindow;
+
+    @Value("${history.buffer.maxBatchSize}")
+    private int historyBufferMaxBatchSize;
+
+    @Value("${history.buffer.maxPending}")
+    private int historyBufferMaxPending;
+
+    @Value("${history.buffer.maxPendingTotal}")
+    private int historyBufferMaxPendingTotal;
+
+    @Value("${history.buffer.timeout}")
+    private long historyBufferTimeout;
+
+    @Value("${history.buffer.threads}")
+    private int historyBufferThreads;
+
+    @Value("${profiler.threshold}")
+    private long profilerThreshold;
+
+    @Value("${profiler.capacity}")
+    private int profilerCapacity;
+
+    @Value("${profiler.explainInterval}")
+    private long profilerExplainInterval;
+
+    @Value("${migration.batchSize}")
+    private int migrationBatchSize;
+
+    @Value("${migration.legacyZone}")
+    private String migrationLegacyZone;
+
+    @Value("${request.maxBytes}")
+    private int requestMaxBytes;
+
+    public @Bean @DependsOn("cluster")
     Bucket bucket() {
         return cluster().openBucket(bucket, password);
     }
 
+    public @Bean
+    ExecutorService executor() {
+        return Executors.newFixedThreadPool(dashboardThreads);
+    }
+
+    /*
+     * Depends on the bucket so that plan capture is stopped before the bucket is closed on shutdown
+     */
+    public @Bean @DependsOn("bucket")
+    QueryProfiler queryProfiler() {
+        return new QueryProfiler(bucket(), profilerThreshold, profilerCapacity, profilerExplainInterval);
+    }
+
+    /*
+     * Hand the profiler to the database layer once the configuration is ready, before any request can run a query
+     */
+    @PostConstruct
+    public void installQueryProfiler() {
+        Database.setQueryProfiler(queryProfiler());
+    }
+
+    /*
+     * Depends on the bucket so that waiting history entries are flushed before the bucket is closed on shutdown
+     */
+    public @Bean @DependsOn("bucket")
+    HistoryWriteBuffer historyBuffer() {
+        return new HistoryWriteBuffer(bucket(), historyBufferWindow, historyBufferMaxBatchSize, historyBufferMaxPending,
+                historyBufferMaxPendingTotal, historyBufferTimeout, historyBufferThreads);
+    }
+
+    /*
+     * Respond to a request body that was rejected while it was being read with the same error format as every other endpoint
+     */
+    @ExceptionHandler(PayloadReader.PayloadException.class)
+    public ResponseEntity<String> payloadError(PayloadReader.PayloadException e) {
+        return new ResponseEntity<String>(JsonObject.create().put("error", e.getStatus().value()).put("message", e.getMessage()).toString(), e.getStatus());
+    }
+
     /*
      * ###################################################
      * ################# User Endpoints ##################
@@ -101,14 +204,9 @@ public class Application implements Filter {
      * Endpoint for creating a new user
      */
     @RequestMapping(value="/user/create", method= RequestMethod.POST)
-    public Object createUser(@RequestBody String json) {
-        JsonObject jsonData = JsonObject.fromJson(json);
-        if(!jsonData.containsKey("username")) {
-            return new ResponseEntity<String>(JsonObject.create().put("error", 400).put("message", "A username must exist").toString(), HttpStatus.BAD_REQUEST);
-        } else if(!jsonData.containsKey("password")) {
-            return new ResponseEntity<String>(JsonObject.create().put("error", 400).put("message", "A password must exist").toString(), HttpStatus.BAD_REQUEST);
-        }
-        return Database.createUser(bucket(), jsonData, jsonData.getString("username"), jsonData.getString("password"));
+    public Object createUser(HttpServletRequest request) {
+        Payloads.CreateUser data = Payloads.CreateUser.read(request, requestMaxBytes);
+        return Database.createUser(bucket(), data);
     }
 
 
@@ -142,14 +240,9 @@ public class Application implements Filter {
      * Endpoint for creating a company
      */
     @RequestMapping(value="/company/create", method= RequestMethod.POST)
-    public Object createCompany(@RequestBody String json) {
-        JsonObject jsonData = JsonObject.fromJson(json);
-        if(!jsonData.containsKey("website")) {
-            return new ResponseEntity<String>(JsonObject.create().put("error", 400).put("message", "A website must exist").toString(), HttpStatus.BAD_REQUEST);
-        } else if(!jsonData.containsKey("name")) {
-            return new ResponseEntity<String>(JsonObject.create().put("error", 400).put("message", "A name must exist").toString(), HttpStatus.BAD_REQUEST);
-        }
-        return Database.createCompany(bucket(), jsonData);
+    public Object createCompany(HttpServletRequest request) {
+        Payloads.CreateCompany data = Payloads.CreateCompany.read(request, requestMaxBytes);
+        return Database.createCompany(bucket(), data);
     }
 
 
@@ -213,32 +306,18 @@ public class Application implements Filter {
      * Endpoint for creating a project
      */
     @RequestMapping(value="/project/create", method= RequestMethod.POST)
-    public Object createProject(@RequestBody String json) {
-        JsonObject jsonData = JsonObject.fromJson(json);
-        if(!jsonData.containsKey("owner")) {
-            return new ResponseEntity<String>(JsonObject.create().put("error", 400).put("message", "An owner must exist").toString(), HttpStatus.BAD_REQUEST);
-        } else if(!jsonData.containsKey("users")) {
-            return new ResponseEntity<String>(JsonObject.create().put("error", 400).put("message", "Users must exist").toString(), HttpStatus.BAD_REQUEST);
-        } else if(!jsonData.containsKey("name")) {
-            return new ResponseEntity<String>(JsonObject.create().put("error", 400).put("message", "A name must exist").toString(), HttpStatus.BAD_REQUEST);
-        } else if(!jsonData.containsKey("description")) {
-            return new ResponseEntity<String>(JsonObject.create().put("error", 400).put("message", "A description must exist").toString(), HttpStatus.BAD_REQUEST);
-        }
-        return Database.createProject(bucket(), jsonData);
+    public Object createProject(HttpServletRequest request) {
+        Payloads.CreateProject data = Payloads.CreateProject.read(request, requestMaxBytes);
+        return Database.createProject(bucket(), data);
     }
 
     /*
      * Endpoint for adding an existing user to a project
      */
     @RequestMapping(value="/project/addUser", method= RequestMethod.POST)
-    public Object projectAddUser(@RequestBody String json) {
-        JsonObject jsonData = JsonObject.fromJson(json);
-        if(!jsonData.containsKey("username")) {
-            return new ResponseEntity<String>(JsonObject.create().put("error", 400).put("message", "An username must exist").toString(), HttpStatus.BAD_REQUEST);
-        } else if(!jsonData.containsKey("projectId")) {
-            return new ResponseEntity<String>(JsonObject.create().put("error", 400).put("message", "A project id must exist").toString(), HttpStatus.BAD_REQUEST);
-        }
-        return Database.projectAddUser(bucket(), jsonData);
+    public Object projectAddUser(HttpServletRequest request) {
+        Payloads.ProjectAddUser data = Payloads.ProjectAddUser.read(request, requestMaxBytes);
+        return Database.projectAddUser(bucket(), data);
     }
 
 
@@ -275,60 +354,150 @@ public class Application implements Filter {
      * Endpoint for creating a new task for an already existing project
      */
     @RequestMapping(value="/task/create/{projectId}", method= RequestMethod.POST)
-    public Object createTaskForProjectId(@PathVariable("projectId") String projectId, @RequestBody String json) {
-        JsonObject jsonData = JsonObject.fromJson(json);
-        if(!jsonData.containsKey("users")) {
-            return new ResponseEntity<String>(JsonObject.create().put("error", 400).put("message", "Users must exist").toString(), HttpStatus.BAD_REQUEST);
-        } else if(!jsonData.containsKey("owner")) {
-            return new ResponseEntity<String>(JsonObject.create().put("error", 400).put("message", "An owner must exist").toString(), HttpStatus.BAD_REQUEST);
-        } else if(projectId.equals("")) {
+    public Object createTaskForProjectId(@PathVariable("projectId") String projectId, HttpServletRequest request) {
+        Payloads.CreateTask data = Payloads.CreateTask.read(request, requestMaxBytes);
+        if(projectId.equals("")) {
             return new ResponseEntity<String>(JsonObject.create().put("error", 400).put("message", "A project id must exist").toString(), HttpStatus.BAD_REQUEST);
         }
-        return Database.createTask(bucket(), projectId, jsonData);
+        return Database.createTask(bucket(), projectId, data, queryAfterWrite);
     }
 
     /*
      * Endpoint for adding an existing user to an existing task
      */
     @RequestMapping(value="/task/addUser", method= RequestMethod.POST)
-    public Object taskAddUser(@RequestBody String json) {
-        JsonObject jsonData = JsonObject.fromJson(json);
-        if(!jsonData.containsKey("username")) {
-            return new ResponseEntity<String>(JsonObject.create().put("error", 400).put("message", "A username must exist").toString(), HttpStatus.BAD_REQUEST);
-        } else if(!jsonData.containsKey("taskId")) {
-            return new ResponseEntity<String>(JsonObject.create().put("error", 400).put("message", "A task id must exist").toString(), HttpStatus.BAD_REQUEST);
-        }
-        return Database.taskAddUser(bucket(), jsonData);
+    public Object taskAddUser(HttpServletRequest request) {
+        Payloads.TaskAddUser data = Payloads.TaskAddUser.read(request, requestMaxBytes);
+        return Database.taskAddUser(bucket(), data);
     }
 
     /*
      * Endpoint for assigning an existing user to an existing task
      */
     @RequestMapping(value="/task/assignUser", method= RequestMethod.POST)
-    public Object taskAssignUser(@RequestBody String json) {
-        JsonObject jsonData = JsonObject.fromJson(json);
-        if(!jsonData.containsKey("userId")) {
-            return new ResponseEntity<String>(JsonObject.create().put("error", 400).put("message", "A user id must exist").toString(), HttpStatus.BAD_REQUEST);
-        } else if(!jsonData.containsKey("taskId")) {
-            return new ResponseEntity<String>(JsonObject.create().put("error", 400).put("message", "A task id must exist").toString(), HttpStatus.BAD_REQUEST);
-        }
-        return Database.taskAssignUser(bucket(), jsonData);
+    public Object taskAssignUser(HttpServletRequest request) {
+        Payloads.TaskAssignUser data = Payloads.TaskAssignUser.read(request, requestMaxBytes);
+        return Database.taskAssignUser(bucket(), data);
     }
 
     /*
      * Endpoint for adding comment history to an existing task
      */
     @RequestMapping(value="/task/addHistory", method= RequestMethod.POST)
-    public Object taskAddHistory(@RequestBody String json) {
-        JsonObject jsonData = JsonObject.fromJson(json);
-        if(!jsonData.containsKey("taskId")) {
-            return new ResponseEntity<String>(JsonObject.create().put("error", 400).put("message", "A task id must exist").toString(), HttpStatus.BAD_REQUEST);
-        } else if(!jsonData.containsKey("userId")) {
+    public Object taskAddHistory(HttpServletRequest request) {
+        Payloads.TaskAddHistory data = Payloads.TaskAddHistory.read(request, requestMaxBytes);
+        return Database.taskAddHistory(bucket(), historyBuffer(), data, queryAfterWrite);
+    }
+
+
+    /*
+     * ###################################################
+     * ############### Dashboard Endpoints ###############
+     * ###################################################
+     */
+
+
+    /*
+     * Endpoint for getting the owned projects, other projects and assigned tasks of a particular user in a single request
+     */
+    @RequestMapping(value="/dashboard/get/{userId}", method= RequestMethod.GET)
+    public Object getDashboard(@PathVariable("userId") String userId) {
+        if(userId.equals("")) {
             return new ResponseEntity<String>(JsonObject.create().put("error", 400).put("message", "A user id must exist").toString(), HttpStatus.BAD_REQUEST);
-        } else if(!jsonData.containsKey("log")) {
-            return new ResponseEntity<String>(JsonObject.create().put("error", 400).put("message", "A log must exist").toString(), HttpStatus.BAD_REQUEST);
         }
-        return Database.taskAddHistory(bucket(), jsonData);
+        return Database.getDashboard(bucket(), executor(), userId, dashboardTimeout);
+    }
+
+
+    /*
+     * ###################################################
+     * ################# Stats Endpoints #################
+     * ###################################################
+     */
+
+
+    /*
+     * Endpoint for getting the counters of many projects, tasks and users with a single bulk get
+     */
+    @RequestMapping(value="/stats/get", method= RequestMethod.POST)
+    public Object getStats(HttpServletRequest request) {
+        Payloads.GetStats data = Payloads.GetStats.read(request, requestMaxBytes);
+        return Database.getStats(bucket(), data);
+    }
+
+    /*
+     * Endpoint for rebuilding every counter from the documents in the database
+     */
+    @RequestMapping(value="/stats/reconcile", method= RequestMethod.POST)
+    public Object reconcileStats() {
+        return Database.reconcileCounters(bucket());
+    }
+
+    /*
+     * Periodically rebuild the counters in case any of the incremental updates were missed
+     */
+    @Scheduled(initialDelayString="${counters.reconcile.interval}", fixedDelayString="${counters.reconcile.interval}")
+    public void reconcileCounters() {
+        Database.reconcileCounters(bucket());
+    }
+
+
+    /*
+     * ###################################################
+     * ################# Admin Endpoints #################
+     * ###################################################
+     */
+
+
+    /*
+     * Endpoint for upgrading a batch of documents written with an older schema version.  Pass the lastId of the previous
+     * batch as after to continue from it.
+     */
+    @RequestMapping(value="/admin/migrate", method= RequestMethod.POST)
+    public Object migrateDocuments(@RequestParam(value="after", defaultValue="") String after) {
+        return Database.migrateDocuments(bucket(), migrationBatchSize, after, legacyZone());
+    }
+
+    private volatile String migrationCursor = "";
+    private volatile int migrationConflicts = 0;
+    private volatile boolean migrationComplete = false;
+
+    /*
+     * Periodically upgrade the next batch of documents written with an older schema version.  When a batch finds nothing
+     * left to scan the pass is over.  If any document in the pass kept changing while it was being migrated, a new pass
+     * starts from the beginning to retry it; otherwise the job stops, because every document written since then is
+     * already current.
+     */
+    @Scheduled(fixedDelayString="${migration.interval}")
+    public void migrateDocumentsInBackground() {
+        if (migrationComplete) {
+            return;
+        }
+        Map<String, Object> batch = Database.migrateDocuments(bucket(), migrationBatchSize, migrationCursor, legacyZone());
+        if ((Integer) batch.get("scanned") > 0) {
+            migrationCursor = (String) batch.get("lastId");
+            migrationConflicts += (Integer) batch.get("conflicted");
+        } else if (migrationConflicts > 0) {
+            migrationCursor = "";
+            migrationConflicts = 0;
+        } else {
+            migrationComplete = true;
+        }
+    }
+
+    /*
+     * The zone of the JVM that wrote the legacy Date.toString() timestamps, which is this JVM's zone unless configured
+     */
+    private TimeZone legacyZone() {
+        return migrationLegacyZone.isEmpty() ? TimeZone.getDefault() : TimeZone.getTimeZone(migrationLegacyZone);
+    }
+
+    /*
+     * Endpoint for getting the most recent slow queries along with their metrics and plans
+     */
+    @RequestMapping(value="/admin/slowQueries", method= RequestMethod.GET)
+    public Object getSlowQueries() {
+        return queryProfiler().getSlowQueries();
     }
 
 }
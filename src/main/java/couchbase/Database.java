@@ -2,21 +2,51 @@ package couchbase;
 
 import com.couchbase.client.java.Bucket;
 import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.JsonLongDocument;
 import com.couchbase.client.java.document.json.JsonArray;
 import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.error.CASMismatchException;
+import com.couchbase.client.java.error.DocumentAlreadyExistsException;
+import com.couchbase.client.java.error.DocumentDoesNotExistException;
 import com.couchbase.client.java.query.*;
-import com.couchbase.client.java.query.consistency.ScanConsistency;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.dao.DataRetrievalFailureException;
+import rx.Observable;
+import rx.functions.Func1;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.crypto.bcrypt.BCrypt;
 
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class Database {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(Database.class);
+
+    /*
+     * The version of the document schema written by this application, stored in the _v property of every document.
+     * Version 1 documents have no _v property and store timestamps as Date.toString() strings.  Version 2 documents
+     * store timestamps as milliseconds since the epoch so they sort and range scan correctly and can be formatted by the client.
+     */
+    public static final int SCHEMA_VERSION = 2;
+
+    private static final int MAX_CAS_RETRIES = 10;
+
+    private static volatile QueryProfiler queryProfiler;
+
     private Database() { }
 
+    /*
+     * Set the profiler that every query is reported to.  Queries are not profiled until this is called.
+     */
+    public static void setQueryProfiler(QueryProfiler profiler) {
+        queryProfiler = profiler;
+    }
+
     /*
      * ###################################################
      * ################# User Functions ##################
@@ -32,7 +62,7 @@ public class Database {
                        "FROM `" + bucket.name() + "` AS users " +
                        "WHERE _type = 'User' AND META(users).id = $1";
         ParameterizedN1qlQuery query = ParameterizedN1qlQuery.parameterized(queryStr, JsonArray.create().add(userId));
-        N1qlQueryResult queryResult = bucket.query(query);
+        N1qlQueryResult queryResult = runQuery(bucket, "getUserById", query);
         return extractResultOrThrow(queryResult);
     }
 
@@ -41,7 +71,7 @@ public class Database {
      */
     public static List<Map<String, Object>> getUsers(final Bucket bucket) {
         String queryStr = "SELECT _id, _type, name, address, company, username, phone, `password` FROM `" + bucket.name() + "` WHERE _type = 'User'";
-        N1qlQueryResult queryResult = bucket.query(N1qlQuery.simple(queryStr));
+        N1qlQueryResult queryResult = runQuery(bucket, "getUsers", N1qlQuery.simple(queryStr));
         return extractResultOrThrow(queryResult);
     }
 
@@ -73,10 +103,11 @@ public class Database {
      * Attempt to create a new user document based on the data that was passed through.  To keep things simple, the document id will be
      * the username.  The password will be Bcrypted and stored for security. The insert will fail if the document id already exists.
      */
-    public static ResponseEntity<String> createUser(final Bucket bucket, JsonObject data, String username, String password) {
+    public static ResponseEntity<String> createUser(final Bucket bucket, Payloads.CreateUser data) {
         JsonObject response;
         HttpStatus responseStatus;
-        JsonDocument document = JsonDocument.create(username, data.put("_id", username).put("_type", "User").put("password", BCrypt.hashpw(password, BCrypt.gensalt())));
+        String username = data.getUsername();
+        JsonDocument document = JsonDocument.create(username, data.toJson().put("_id", username).put("_type", "User").put("_v", SCHEMA_VERSION).put("password", BCrypt.hashpw(data.getPassword(), BCrypt.gensalt())));
         try {
             bucket.insert(document);
             response = document.content();
@@ -104,7 +135,7 @@ public class Database {
                        "FROM `" + bucket.name() + "` AS companies " +
                        "WHERE _type = 'Company' AND META(companies).id = $1";
         ParameterizedN1qlQuery query = ParameterizedN1qlQuery.parameterized(queryStr, JsonArray.create().add(companyId));
-        N1qlQueryResult queryResult = bucket.query(query);
+        N1qlQueryResult queryResult = runQuery(bucket, "getCompanyById", query);
         return extractResultOrThrow(queryResult);
     }
 
@@ -113,17 +144,17 @@ public class Database {
      */
     public static List<Map<String, Object>> getCompanies(final Bucket bucket) {
         String queryStr = "SELECT _id, _type, name, address, phone, website FROM `" + bucket.name() + "` WHERE _type = 'Company'";
-        N1qlQueryResult queryResult = bucket.query(N1qlQuery.simple(queryStr));
+        N1qlQueryResult queryResult = runQuery(bucket, "getCompanies", N1qlQuery.simple(queryStr));
         return extractResultOrThrow(queryResult);
     }
 
     /*
      * Create a company and use the website as the document id
      */
-    public static ResponseEntity<String> createCompany(final Bucket bucket, JsonObject data) {
+    public static ResponseEntity<String> createCompany(final Bucket bucket, Payloads.CreateCompany data) {
         JsonObject response;
         HttpStatus responseStatus;
-        JsonDocument document = JsonDocument.create(data.getString("website"), data.put("_id", data.getString("website")).put("_type", "Company"));
+        JsonDocument document = JsonDocument.create(data.getWebsite(), data.toJson().put("_id", data.getWebsite()).put("_type", "Company").put("_v", SCHEMA_VERSION));
         try {
             bucket.insert(document);
             response = document.content();
@@ -155,7 +186,7 @@ public class Database {
                 "history, permalink FROM `" + bucket.name() + "` USE KEYS c.tasks) as tasks, permalink FROM " +
                 " `" + bucket.name() + "` c WHERE c._id=$1";
         ParameterizedN1qlQuery query = ParameterizedN1qlQuery.parameterized(queryStr, JsonArray.create().add(projectId));
-        N1qlQueryResult queryResult = bucket.query(query);
+        N1qlQueryResult queryResult = runQuery(bucket, "getProjectById", query);
         return extractResultOrThrow(queryResult);
     }
 
@@ -165,7 +196,7 @@ public class Database {
     public static List<Map<String, Object>> getProjectsByOwnerId(final Bucket bucket, String ownerId) {
         String queryStr = "SELECT _id, _type, owner, users, tasks, description, name FROM `" + bucket.name() + "` WHERE _type = 'Project' and owner = $1";
         ParameterizedN1qlQuery query = ParameterizedN1qlQuery.parameterized(queryStr, JsonArray.create().add(ownerId));
-        N1qlQueryResult queryResult = bucket.query(query);
+        N1qlQueryResult queryResult = runQuery(bucket, "getProjectsByOwnerId", query);
         return extractResultOrThrow(queryResult);
     }
 
@@ -174,7 +205,7 @@ public class Database {
      */
     public static List<Map<String, Object>> getProjects(final Bucket bucket) {
         String queryStr = "SELECT _id, _type, name, description, tasks, users, owner FROM `" + bucket.name() + "` AS projects WHERE _type = 'Project'";
-        N1qlQueryResult queryResult = bucket.query(N1qlQuery.simple(queryStr));
+        N1qlQueryResult queryResult = runQuery(bucket, "getProjects", N1qlQuery.simple(queryStr));
         return extractResultOrThrow(queryResult);
     }
 
@@ -184,20 +215,20 @@ public class Database {
     public static List<Map<String, Object>> getOtherProjectsByUserId(final Bucket bucket, String userId) {
         String queryStr = "SELECT _id, _type, name, description, tasks, users, owner FROM `" + bucket.name() + "` WHERE _type = 'Project' AND ANY x IN users SATISFIES x = $1 END";
         ParameterizedN1qlQuery query = ParameterizedN1qlQuery.parameterized(queryStr, JsonArray.create().add(userId));
-        N1qlQueryResult queryResult = bucket.query(query);
+        N1qlQueryResult queryResult = runQuery(bucket, "getOtherProjectsByUserId", query);
         return extractResultOrThrow(queryResult);
     }
 
     /*
      * Create a new project in the database
      */
-    public static ResponseEntity<String> createProject(final Bucket bucket, JsonObject data) {
+    public static ResponseEntity<String> createProject(final Bucket bucket, Payloads.CreateProject data) {
         JsonObject response;
         HttpStatus responseStatus;
         String documentId = UUID.randomUUID().toString();
-        JsonArray users = data.getArray("users");
-        users.add(data.getString("owner"));
-        JsonDocument document = JsonDocument.create(documentId, data.put("_id", documentId).put("_type", "Project").put("users", users).put("createdON", (new Date()).toString()));
+        JsonArray users = JsonArray.from(data.getUsers());
+        users.add(data.getOwner());
+        JsonDocument document = JsonDocument.create(documentId, data.toJson().put("_id", documentId).put("_type", "Project").put("_v", SCHEMA_VERSION).put("users", users).put("createdON", System.currentTimeMillis()));
         try {
             bucket.upsert(document);
             response = document.content();
@@ -212,30 +243,32 @@ public class Database {
     /*
      * Add a user to a particular project based on the existing user id and project id
      */
-    public static ResponseEntity<String> projectAddUser(final Bucket bucket, JsonObject data) {
+    public static ResponseEntity<String> projectAddUser(final Bucket bucket, final Payloads.ProjectAddUser data) {
         JsonObject response;
         HttpStatus responseStatus;
-        JsonDocument user = bucket.get(data.getString("username"));
+        JsonDocument user = bucket.get(data.getUsername());
         if(user == null) {
             response = JsonObject.create().put("error", 400).put("message", "The user does not exist");
-            responseStatus = HttpStatus.BAD_REQUEST;
-        }
-        JsonDocument project = bucket.get(data.getString("projectId"));
-        if(project == null) {
-            response = JsonObject.create().put("error", 400).put("message", "The project does not exist");
-            responseStatus = HttpStatus.BAD_REQUEST;
+            return new ResponseEntity<String>(response.toString(), HttpStatus.BAD_REQUEST);
         }
-        JsonObject jsonProject = project.content();
-        JsonArray projectUsers = jsonProject.getArray("users");
-        if(!projectUsers.toString().contains(data.getString("username"))) {
-            projectUsers.add(data.getString("username"));
-        }
-        jsonProject.put("users", projectUsers);
-        project = JsonDocument.create(jsonProject.getString("_id"), jsonProject);
         try {
-            bucket.upsert(project);
-            response = user.content();
-            responseStatus = HttpStatus.OK;
+            JsonDocument project = updateDocument(bucket, data.getProjectId(), new Func1<JsonObject, JsonObject>() {
+                @Override
+                public JsonObject call(JsonObject jsonProject) {
+                    JsonArray projectUsers = jsonProject.getArray("users");
+                    if(!projectUsers.toString().contains(data.getUsername())) {
+                        projectUsers.add(data.getUsername());
+                    }
+                    return jsonProject.put("users", projectUsers);
+                }
+            });
+            if(project == null) {
+                response = JsonObject.create().put("error", 400).put("message", "The project does not exist");
+                responseStatus = HttpStatus.BAD_REQUEST;
+            } else {
+                response = user.content();
+                responseStatus = HttpStatus.OK;
+            }
         } catch (Exception e) {
             response = JsonObject.create().put("error", 409).put("message", e.getMessage());
             responseStatus = HttpStatus.INTERNAL_SERVER_ERROR;
@@ -265,7 +298,19 @@ public class Database {
                 "company, createdON, name, `password`, phone FROM `" + bucket.name() + "` USE KEYS c.users) AS " +
                 "users, permalink FROM `" + bucket.name() + "` c WHERE c.assignedTo = $1";
         ParameterizedN1qlQuery query = ParameterizedN1qlQuery.parameterized(queryStr, JsonArray.create().add(userId));
-        N1qlQueryResult queryResult = bucket.query(query);
+        N1qlQueryResult queryResult = runQuery(bucket, "getTasksAssignedToUserId", query);
+        return extractResultOrThrow(queryResult);
+    }
+
+    /*
+     * Get all tasks assigned to a particular user id from the database, selecting the same properties as getTasksAssignedToUserId
+     * but leaving assigned to, owner and users as user ids instead of expanding them.  An array of objects is returned.
+     */
+    public static List<Map<String, Object>> getTasksAssignedToUserIdWithoutExpansion(final Bucket bucket, String userId) {
+        String queryStr = "SELECT _id, assignedTo, createdON, description, history, name, owner, users, permalink " +
+                "FROM `" + bucket.name() + "` c WHERE c.assignedTo = $1";
+        ParameterizedN1qlQuery query = ParameterizedN1qlQuery.parameterized(queryStr, JsonArray.create().add(userId));
+        N1qlQueryResult queryResult = runQuery(bucket, "getTasksAssignedToUserIdWithoutExpansion", query);
         return extractResultOrThrow(queryResult);
     }
 
@@ -287,40 +332,43 @@ public class Database {
                 "AS users, permalink FROM `" + bucket.name() + "` c WHERE c._id= $1)[0] AS task FROM `" + bucket.name() + "` " +
                 "p WHERE ANY x IN tasks SATISFIES x = $1 END ";
         ParameterizedN1qlQuery query = ParameterizedN1qlQuery.parameterized(queryStr, JsonArray.create().add(taskId));
-        N1qlQueryResult queryResult = bucket.query(query);
+        N1qlQueryResult queryResult = runQuery(bucket, "getTaskById", query);
         return extractResultOrThrow(queryResult);
     }
 
     /*
-     * Create a task for an existing project assigned to an existing user
+     * Create a task for an existing project assigned to an existing user.  The response is read back with a query that
+     * only waits for the index to include this task, or, when queryAfterWrite is false, built from the written document
+     * and a bulk get of its users without querying at all.
      */
-    public static List<Map<String, Object>> createTask(final Bucket bucket, String projectId, JsonObject data) {
+    public static List<Map<String, Object>> createTask(final Bucket bucket, String projectId, Payloads.CreateTask data, boolean queryAfterWrite) {
         JsonObject response = null;
         HttpStatus responseStatus = null;
-        String taskId = UUID.randomUUID().toString();
-        JsonArray users = data.getArray("users");
-        users.add(data.getString("owner"));
-        JsonDocument document = JsonDocument.create(taskId, data.put("_id", taskId).put("_type", "Task").put("users", users).put("createdON", (new Date()).toString()));
+        final String taskId = UUID.randomUUID().toString();
+        JsonArray users = JsonArray.from(data.getUsers());
+        users.add(data.getOwner());
+        JsonDocument document = JsonDocument.create(taskId, data.toJson().put("_id", taskId).put("_type", "Task").put("_v", SCHEMA_VERSION).put("users", users).put("createdON", System.currentTimeMillis()));
 
         try {
-            bucket.upsert(document);
+            document = bucket.upsert(document);
         } catch (Exception e) {
             response = JsonObject.create().put("error", 409).put("message", e.getMessage());
             responseStatus = HttpStatus.INTERNAL_SERVER_ERROR;
         }
 
-        JsonDocument project = bucket.get(projectId);
-        if(project == null) {
-            response = JsonObject.create().put("error", 400).put("message", "The project id does not exist");
-            responseStatus = HttpStatus.BAD_REQUEST;
-        }
-        JsonObject jsonProject = project.content();
-        JsonArray jsonProjectTasks = jsonProject.getArray("tasks");
-        jsonProjectTasks.add(taskId);
-        jsonProject.put("tasks", jsonProjectTasks);
-        project = JsonDocument.create(jsonProject.getString("_id"), jsonProject);
         try {
-            bucket.upsert(project);
+            JsonDocument project = updateDocument(bucket, projectId, new Func1<JsonObject, JsonObject>() {
+                @Override
+                public JsonObject call(JsonObject jsonProject) {
+                    JsonArray jsonProjectTasks = jsonProject.getArray("tasks");
+                    jsonProjectTasks.add(taskId);
+                    return jsonProject.put("tasks", jsonProjectTasks);
+                }
+            });
+            if(project == null) {
+                response = JsonObject.create().put("error", 400).put("message", "The project id does not exist");
+                responseStatus = HttpStatus.BAD_REQUEST;
+            }
         } catch (Exception e) {
             response = JsonObject.create().put("error", 409).put("message", e.getMessage());
             responseStatus = HttpStatus.INTERNAL_SERVER_ERROR;
@@ -332,38 +380,77 @@ public class Database {
             return responseMap;
         }
 
+        incrementCounter(bucket, "project", projectId, "tasks", 1);
+        if(data.getAssignedTo() != null) {
+            incrementCounter(bucket, "user", data.getAssignedTo(), "assignedTasks", 1);
+        }
+        for(Object userId : new LinkedHashSet<Object>(users.toList())) {
+            incrementCounter(bucket, "user", String.valueOf(userId), "taskMemberships", 1);
+        }
+
+        if(!queryAfterWrite) {
+            JsonObject jsonTask = document.content();
+            Set<String> userIds = new LinkedHashSet<String>(data.getUsers());
+            userIds.add(data.getOwner());
+            Map<String, JsonObject> taskUsers = getDocumentsByIds(bucket, userIds);
+            JsonObject owner = taskUsers.get(data.getOwner());
+            List<Object> expandedUsers = new ArrayList<Object>();
+            for(Object userId : users) {
+                if(taskUsers.containsKey(userId)) {
+                    expandedUsers.add(expandUser(taskUsers.get(userId)));
+                }
+            }
+            Map<String, Object> task = new LinkedHashMap<String, Object>();
+            task.put("_id", taskId);
+            task.put("createdON", jsonTask.get("createdON"));
+            task.put("name", jsonTask.get("name"));
+            task.put("description", jsonTask.get("description"));
+            task.put("owner", owner == null ? null : expandUser(owner));
+            task.put("users", expandedUsers);
+            task.put("permalink", jsonTask.get("permalink"));
+            List<Map<String, Object>> responseMap = new ArrayList<Map<String, Object>>();
+            responseMap.add(task);
+            return responseMap;
+        }
+
         String queryStr = "SELECT c._id, c.createdON, c.name, c.description," +
                 "(SELECT _id, _type, active, address, company, createdON, name, `password`, phone " +
                 "FROM `" + bucket.name() + "` USE KEYS c.owner)[0] AS owner, c.status, (SELECT _id, _type," +
                 "active, address, company, createdON, name, `password`, phone FROM `" + bucket.name() + "` " +
                 " USE KEYS c.users) AS users, c.permalink FROM `" + bucket.name() + "` " +
                 " c WHERE c._id = $1";
-        N1qlParams params = N1qlParams.build().consistency(ScanConsistency.REQUEST_PLUS);
+        N1qlParams params = N1qlParams.build().consistentWith(document);
         ParameterizedN1qlQuery query = ParameterizedN1qlQuery.parameterized(queryStr, JsonArray.create().add(taskId), params);
-        N1qlQueryResult queryResult = bucket.query(query);
+        N1qlQueryResult queryResult = runQuery(bucket, "createTask", query);
         return extractResultOrThrow(queryResult);
     }
 
     /*
-     * Add a new comment to the history of a task based on the task id and user id.  Returns the comment along with the
-     * expanded user information that created it.  An array of objects are returned.
+     * Add a new comment to the history of a task based on the task id and user id.  The comment is handed to the history
+     * buffer so comments made on the same task at the same time are written together.  Returns the comment along with the
+     * expanded user information that created it, read back with a query, or with a single get of the user when
+     * queryAfterWrite is false.  The query only reads the user document, which this request doesn't write, so it runs
+     * without waiting for the index to catch up on the task write.  An array of objects are returned.
      */
-    public static List<Map<String, Object>> taskAddHistory(final Bucket bucket, JsonObject data) {
+    public static List<Map<String, Object>> taskAddHistory(final Bucket bucket, HistoryWriteBuffer historyBuffer, Payloads.TaskAddHistory data, boolean queryAfterWrite) {
         JsonObject response = null;
         HttpStatus responseStatus = null;
-        JsonDocument task = bucket.get(data.getString("taskId"));
-        if(task == null) {
+        JsonObject currentTaskHistory = data.toJson(System.currentTimeMillis());
+        try {
+            historyBuffer.append(data.getTaskId(), currentTaskHistory);
+        } catch (DocumentDoesNotExistException e) {
             response = JsonObject.create().put("error", 400).put("message", "The task id does not exist");
             responseStatus = HttpStatus.BAD_REQUEST;
-        }
-        JsonObject jsonTask = task.content();
-        JsonArray taskHistory = jsonTask.getArray("history");
-        JsonObject currentTaskHistory = JsonObject.create().put("log", data.getString("log")).put("user", data.getString("userId")).put("createdAt", (new Date()).toString());
-        taskHistory.add(currentTaskHistory);
-        jsonTask.put("history", taskHistory);
-        task = JsonDocument.create(data.getString("taskId"), jsonTask);
-        try {
-            bucket.upsert(task);
+        } catch (RejectedExecutionException e) {
+            response = JsonObject.create().put("error", 503).put("message", e.getMessage());
+            responseStatus = HttpStatus.SERVICE_UNAVAILABLE;
+        } catch (TimeoutException e) {
+            response = JsonObject.create().put("error", 503).put("message", e.getMessage());
+            responseStatus = HttpStatus.SERVICE_UNAVAILABLE;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            response = JsonObject.create().put("error", 500).put("message", "The request was interrupted");
+            responseStatus = HttpStatus.INTERNAL_SERVER_ERROR;
         } catch (Exception e) {
             response = JsonObject.create().put("error", 409).put("message", e.getMessage());
             responseStatus = HttpStatus.INTERNAL_SERVER_ERROR;
@@ -375,39 +462,62 @@ public class Database {
             return responseMap;
         }
 
+        incrementCounter(bucket, "task", data.getTaskId(), "history", 1);
+        incrementCounter(bucket, "user", data.getUserId(), "comments", 1);
+
+        if(!queryAfterWrite) {
+            JsonDocument user = bucket.get(data.getUserId());
+            Map<String, Object> entry = new LinkedHashMap<String, Object>();
+            entry.put("log", data.getLog());
+            entry.put("user", user == null ? null : expandUser(user.content()));
+            entry.put("createdAt", currentTaskHistory.getLong("createdAt"));
+            List<Map<String, Object>> responseMap = new ArrayList<Map<String, Object>>();
+            responseMap.add(entry);
+            return responseMap;
+        }
+
         String queryStr = "SELECT ($1) AS log, (SELECT _id, _type, active," +
                 "address, company, createdON, name, `password`, phone " +
                 "FROM `" + bucket.name() + "` USE KEYS c._id)[0] AS `user`,($2) AS createdAt " +
                 " FROM `" + bucket.name() + "` c WHERE c._id = $3 ";
-        N1qlParams params = N1qlParams.build().consistency(ScanConsistency.REQUEST_PLUS);
-        ParameterizedN1qlQuery query = ParameterizedN1qlQuery.parameterized(queryStr, JsonArray.create().add(data.getString("log")).add(currentTaskHistory.getString("createdAt")).add(data.getString("userId")), params);
-        N1qlQueryResult queryResult = bucket.query(query);
+        ParameterizedN1qlQuery query = ParameterizedN1qlQuery.parameterized(queryStr, JsonArray.create().add(data.getLog()).add(currentTaskHistory.getLong("createdAt")).add(data.getUserId()));
+        N1qlQueryResult queryResult = runQuery(bucket, "taskAddHistory", query);
         return extractResultOrThrow(queryResult);
     }
 
     /*
-     * Assign a particular existing user to an existing task
+     * Assign a particular existing user to an existing task.  The task is replaced with CAS so an assignment that overlaps
+     * a history buffer flush can't overwrite the flushed history.
      */
-    public static ResponseEntity<String> taskAssignUser(final Bucket bucket, JsonObject data) {
+    public static ResponseEntity<String> taskAssignUser(final Bucket bucket, final Payloads.TaskAssignUser data) {
         JsonObject response;
         HttpStatus responseStatus;
-        JsonDocument user = bucket.get(data.getString("userId"));
+        JsonDocument user = bucket.get(data.getUserId());
         if(user == null) {
             response = JsonObject.create().put("error", 400).put("message", "The user id does not exist");
-            responseStatus = HttpStatus.BAD_REQUEST;
-        }
-        JsonDocument task = bucket.get(data.getString("taskId"));
-        if(task == null) {
-            response = JsonObject.create().put("error", 400).put("message", "The task id does not exist");
-            responseStatus = HttpStatus.BAD_REQUEST;
+            return new ResponseEntity<String>(response.toString(), HttpStatus.BAD_REQUEST);
         }
-        JsonObject jsonTask = task.content();
-        jsonTask.put("assignedTo", data.getString("userId"));
-        task = JsonDocument.create(jsonTask.getString("_id"), jsonTask);
         try {
-            bucket.upsert(task);
-            response = user.content();
-            responseStatus = HttpStatus.OK;
+            JsonDocument task = updateDocument(bucket, data.getTaskId(), new Func1<JsonObject, JsonObject>() {
+                @Override
+                public JsonObject call(JsonObject jsonTask) {
+                    return jsonTask.put("assignedTo", data.getUserId());
+                }
+            });
+            if(task == null) {
+                response = JsonObject.create().put("error", 400).put("message", "The task id does not exist");
+                responseStatus = HttpStatus.BAD_REQUEST;
+            } else {
+                String previousUserId = task.content().getString("assignedTo");
+                if(!data.getUserId().equals(previousUserId)) {
+                    if(previousUserId != null) {
+                        incrementCounter(bucket, "user", previousUserId, "assignedTasks", -1);
+                    }
+                    incrementCounter(bucket, "user", data.getUserId(), "assignedTasks", 1);
+                }
+                response = user.content();
+                responseStatus = HttpStatus.OK;
+            }
         } catch (Exception e) {
             response = JsonObject.create().put("error", 409).put("message", e.getMessage());
             responseStatus = HttpStatus.INTERNAL_SERVER_ERROR;
@@ -416,32 +526,38 @@ public class Database {
     }
 
     /*
-     * Add a user to an existing task, but not make it the assigned user
+     * Add a user to an existing task, but not make it the assigned user.  The task is replaced with CAS so the change
+     * can't overwrite history written by a history buffer flush at the same time.
      */
-    public static ResponseEntity<String> taskAddUser(final Bucket bucket, JsonObject data) {
+    public static ResponseEntity<String> taskAddUser(final Bucket bucket, final Payloads.TaskAddUser data) {
         JsonObject response;
         HttpStatus responseStatus;
-        JsonDocument user = bucket.get(data.getString("username"));
+        JsonDocument user = bucket.get(data.getUsername());
         if(user == null) {
             response = JsonObject.create().put("error", 400).put("message", "The user id does not exist");
-            responseStatus = HttpStatus.BAD_REQUEST;
-        }
-        JsonDocument task = bucket.get(data.getString("taskId"));
-        if(task == null) {
-            response = JsonObject.create().put("error", 400).put("message", "The task id does not exist");
-            responseStatus = HttpStatus.BAD_REQUEST;
-        }
-        JsonObject jsonTask = task.content();
-        JsonArray taskUsers = jsonTask.getArray("users");
-        if(!taskUsers.toString().contains(data.getString("username"))) {
-            taskUsers.add(data.getString("username"));
+            return new ResponseEntity<String>(response.toString(), HttpStatus.BAD_REQUEST);
         }
-        jsonTask.put("users", taskUsers);
-        task = JsonDocument.create(jsonTask.getString("_id"), jsonTask);
         try {
-            bucket.upsert(task);
-            response = user.content();
-            responseStatus = HttpStatus.OK;
+            JsonDocument task = updateDocument(bucket, data.getTaskId(), new Func1<JsonObject, JsonObject>() {
+                @Override
+                public JsonObject call(JsonObject jsonTask) {
+                    JsonArray taskUsers = jsonTask.getArray("users");
+                    if(!taskUsers.toString().contains(data.getUsername())) {
+                        taskUsers.add(data.getUsername());
+                    }
+                    return jsonTask.put("users", taskUsers);
+                }
+            });
+            if(task == null) {
+                response = JsonObject.create().put("error", 400).put("message", "The task id does not exist");
+                responseStatus = HttpStatus.BAD_REQUEST;
+            } else {
+                if(!task.content().getArray("users").toString().contains(data.getUsername())) {
+                    incrementCounter(bucket, "user", data.getUsername(), "taskMemberships", 1);
+                }
+                response = user.content();
+                responseStatus = HttpStatus.OK;
+            }
         } catch (Exception e) {
             response = JsonObject.create().put("error", 409).put("message", e.getMessage());
             responseStatus = HttpStatus.INTERNAL_SERVER_ERROR;
@@ -450,6 +566,477 @@ public class Database {
     }
 
 
+    /*
+     * ###################################################
+     * ################ Counter Functions ################
+     * ###################################################
+     */
+
+
+    /*
+     * The counters that are maintained for each kind of document.  Project counters track the number of tasks, task counters
+     * track the number of history entries, and user counters track assigned tasks, task memberships and comments written.
+     */
+    private static final Map<String, List<String>> COUNTERS = new LinkedHashMap<String, List<String>>();
+
+    static {
+        COUNTERS.put("project", Arrays.asList("tasks"));
+        COUNTERS.put("task", Arrays.asList("history"));
+        COUNTERS.put("user", Arrays.asList("assignedTasks", "taskMemberships", "comments"));
+    }
+
+    /*
+     * Get the stats for many projects, tasks and users at once.  The data passed in contains arrays of ids keyed by the
+     * plural kind, for example {"users": ["nraboy"], "projects": [...]}.  Every counter is fetched with a single bulk key-value
+     * get and counters that have never been written are reported as zero.
+     */
+    public static Map<String, Object> getStats(final Bucket bucket, Payloads.GetStats data) {
+        Map<String, List<String>> idsByKind = new LinkedHashMap<String, List<String>>();
+        List<String> counterIds = new ArrayList<String>();
+        for (Map.Entry<String, List<String>> kind : COUNTERS.entrySet()) {
+            List<String> kindIds = data.getIds(kind.getKey() + "s");
+            for (String id : kindIds) {
+                for (String name : kind.getValue()) {
+                    counterIds.add(counterKey(kind.getKey(), id, name));
+                }
+            }
+            idsByKind.put(kind.getKey(), kindIds);
+        }
+        Map<String, Long> counters = getCountersByIds(bucket, counterIds);
+        Map<String, Object> response = new LinkedHashMap<String, Object>();
+        for (Map.Entry<String, List<String>> kind : idsByKind.entrySet()) {
+            Map<String, Object> kindStats = new LinkedHashMap<String, Object>();
+            for (String id : kind.getValue()) {
+                Map<String, Object> stats = new LinkedHashMap<String, Object>();
+                for (String name : COUNTERS.get(kind.getKey())) {
+                    Long value = counters.get(counterKey(kind.getKey(), id, name));
+                    stats.put(name, value == null ? 0L : value);
+                }
+                kindStats.put(id, stats);
+            }
+            response.put(kind.getKey() + "s", kindStats);
+        }
+        return response;
+    }
+
+    /*
+     * Rebuild every counter from a scan of the project, task and user documents.  Counters are maintained incrementally by
+     * the write functions, so this only corrects drift caused by failed counter updates or writes made outside of this
+     * application.  The counters are read along with their CAS values before the scan, and a scanned count is only written
+     * if the counter has not changed since then, or is only created if it still does not exist.  A counter that was updated
+     * during the scan, or by another reconciliation, is skipped and corrected by the next run.  Returns the number of
+     * counters that were corrected and skipped.
+     */
+    public static Map<String, Object> reconcileCounters(final Bucket bucket) {
+        Map<String, Long> counters = new LinkedHashMap<String, Long>();
+        String queryStr = "SELECT META(c).id AS id, LOWER(c._type) AS kind FROM `" + bucket.name() + "` c " +
+                "WHERE c._type IN ['Project', 'Task', 'User']";
+        for (Map<String, Object> row : extractResultOrThrow(runQuery(bucket, "reconcileCounters", N1qlQuery.simple(queryStr)))) {
+            for (String name : COUNTERS.get(row.get("kind"))) {
+                counters.put(counterKey((String) row.get("kind"), (String) row.get("id"), name), 0L);
+            }
+        }
+        Map<String, JsonLongDocument> observed = getCounterDocumentsByIds(bucket, counters.keySet());
+        reconcileCounter(bucket, counters, "project", "tasks", "SELECT c._id AS id, ARRAY_LENGTH(c.tasks) AS `count` " +
+                "FROM `" + bucket.name() + "` c WHERE c._type = 'Project' AND c.tasks IS VALUED");
+        reconcileCounter(bucket, counters, "task", "history", "SELECT c._id AS id, ARRAY_LENGTH(c.history) AS `count` " +
+                "FROM `" + bucket.name() + "` c WHERE c._type = 'Task' AND c.history IS VALUED");
+        reconcileCounter(bucket, counters, "user", "assignedTasks", "SELECT c.assignedTo AS id, COUNT(*) AS `count` " +
+                "FROM `" + bucket.name() + "` c WHERE c._type = 'Task' AND c.assignedTo IS VALUED GROUP BY c.assignedTo");
+        reconcileCounter(bucket, counters, "user", "taskMemberships", "SELECT u AS id, COUNT(DISTINCT c._id) AS `count` " +
+                "FROM `" + bucket.name() + "` c UNNEST c.users u WHERE c._type = 'Task' GROUP BY u");
+        reconcileCounter(bucket, counters, "user", "comments", "SELECT h.`user` AS id, COUNT(*) AS `count` " +
+                "FROM `" + bucket.name() + "` c UNNEST c.history h WHERE c._type = 'Task' GROUP BY h.`user`");
+        int corrected = 0;
+        int skipped = 0;
+        for (Map.Entry<String, Long> counter : counters.entrySet()) {
+            JsonLongDocument observedCounter = observed.get(counter.getKey());
+            try {
+                if (observedCounter == null) {
+                    bucket.insert(JsonLongDocument.create(counter.getKey(), counter.getValue()));
+                    corrected++;
+                } else if (!observedCounter.content().equals(counter.getValue())) {
+                    bucket.replace(JsonLongDocument.create(counter.getKey(), counter.getValue(), observedCounter.cas()));
+                    corrected++;
+                }
+            } catch (DocumentAlreadyExistsException e) {
+                skipped++;
+            } catch (CASMismatchException e) {
+                skipped++;
+            }
+        }
+        return JsonObject.create().put("counters", counters.size()).put("corrected", corrected).put("skipped", skipped).toMap();
+    }
+
+    /*
+     * Run a query that returns an id and a count for each row and record the counts as the value of a particular counter
+     */
+    private static void reconcileCounter(final Bucket bucket, Map<String, Long> counters, String kind, String name, String queryStr) {
+        for (Map<String, Object> row : extractResultOrThrow(runQuery(bucket, "reconcileCounters." + kind + "." + name, N1qlQuery.simple(queryStr)))) {
+            if (row.get("id") instanceof String && row.get("count") instanceof Number) {
+                counters.put(counterKey(kind, (String) row.get("id"), name), ((Number) row.get("count")).longValue());
+            }
+        }
+    }
+
+    /*
+     * Atomically adjust a counter, creating it if it does not exist yet.  A failed counter update must not fail the write
+     * that triggered it, so the error is logged and the counter is corrected by the next reconciliation.
+     */
+    private static void incrementCounter(final Bucket bucket, String kind, String id, String name, long delta) {
+        String key = counterKey(kind, id, name);
+        try {
+            bucket.counter(key, delta, Math.max(delta, 0));
+        } catch (Exception e) {
+            LOGGER.warn("Could not update counter " + key + " by " + delta + ", it will be corrected by the next reconciliation", e);
+        }
+    }
+
+    /*
+     * Get many counters at once by their ids with a single bulk key-value get.  Counters that do not exist are left out of the result.
+     */
+    private static Map<String, Long> getCountersByIds(final Bucket bucket, Collection<String> ids) {
+        Map<String, Long> content = new LinkedHashMap<String, Long>();
+        for (JsonLongDocument document : getCounterDocumentsByIds(bucket, ids).values()) {
+            content.put(document.id(), document.content());
+        }
+        return content;
+    }
+
+    /*
+     * Get many counter documents, including their CAS values, at once by their ids with a single bulk key-value get
+     */
+    private static Map<String, JsonLongDocument> getCounterDocumentsByIds(final Bucket bucket, Collection<String> ids) {
+        List<JsonLongDocument> documents = Observable
+                .from(ids)
+                .flatMap(new Func1<String, Observable<JsonLongDocument>>() {
+                    @Override
+                    public Observable<JsonLongDocument> call(String id) {
+                        return bucket.async().get(id, JsonLongDocument.class);
+                    }
+                })
+                .toList()
+                .toBlocking()
+                .single();
+        Map<String, JsonLongDocument> counters = new LinkedHashMap<String, JsonLongDocument>();
+        for (JsonLongDocument document : documents) {
+            counters.put(document.id(), document);
+        }
+        return counters;
+    }
+
+    /*
+     * Build the document id of a counter.  The prefix keeps counters from colliding with user documents, which are keyed by username.
+     */
+    private static String counterKey(String kind, String id, String name) {
+        return "counter::" + kind + "::" + id + "::" + name;
+    }
+
+
+    /*
+     * ###################################################
+     * ############### Migration Functions ###############
+     * ###################################################
+     */
+
+
+    /*
+     * Zone abbreviations Date.toString() writes that name exactly one offset, mapped to that offset.  They are only used
+     * when an abbreviation is not one of the legacy zone's own, because abbreviations such as CST, IST or BST name
+     * several zones and can only be resolved by knowing which zone wrote them.
+     */
+    private static final Map<String, String> UNAMBIGUOUS_ZONES = new HashMap<String, String>();
+    static {
+        UNAMBIGUOUS_ZONES.put("UTC", "GMT");
+        UNAMBIGUOUS_ZONES.put("GMT", "GMT");
+        UNAMBIGUOUS_ZONES.put("WET", "GMT");
+        UNAMBIGUOUS_ZONES.put("WEST", "GMT+01:00");
+        UNAMBIGUOUS_ZONES.put("CET", "GMT+01:00");
+        UNAMBIGUOUS_ZONES.put("CEST", "GMT+02:00");
+        UNAMBIGUOUS_ZONES.put("EET", "GMT+02:00");
+        UNAMBIGUOUS_ZONES.put("EEST", "GMT+03:00");
+        UNAMBIGUOUS_ZONES.put("JST", "GMT+09:00");
+        UNAMBIGUOUS_ZONES.put("EST", "GMT-05:00");
+        UNAMBIGUOUS_ZONES.put("EDT", "GMT-04:00");
+        UNAMBIGUOUS_ZONES.put("MST", "GMT-07:00");
+        UNAMBIGUOUS_ZONES.put("MDT", "GMT-06:00");
+        UNAMBIGUOUS_ZONES.put("PST", "GMT-08:00");
+        UNAMBIGUOUS_ZONES.put("PDT", "GMT-07:00");
+        UNAMBIGUOUS_ZONES.put("AKST", "GMT-09:00");
+        UNAMBIGUOUS_ZONES.put("AKDT", "GMT-08:00");
+        UNAMBIGUOUS_ZONES.put("HST", "GMT-10:00");
+    }
+
+    private static final int MIGRATION_ATTEMPTS = 3;
+
+    /*
+     * What happened to a single document during a migration
+     */
+    private enum MigrationOutcome { MIGRATED, CURRENT, CONFLICTED, UNCONVERTIBLE }
+
+    /*
+     * Upgrade the next batch of documents, in id order after a given id, that were written with an older schema version.
+     * Timestamps stored as Date.toString() strings are converted to milliseconds since the epoch and the document is
+     * stamped with the current schema version.  The legacy zone is the zone of the JVM that wrote those strings, and its
+     * abbreviations are resolved against it first.  A document with a timestamp that still can't be converted is logged
+     * and left at its old version.  Each document is replaced using the CAS value it was read with and is read again if it
+     * changed in between; one that kept changing is reported as conflicted so a later pass can retry it.  Returns how many
+     * documents were scanned, migrated, conflicted and unconvertible, and the last id scanned, which is where the next batch
+     * starts.  A batch that scans no documents means the pass is complete.
+     */
+    public static Map<String, Object> migrateDocuments(final Bucket bucket, int batchSize, String after, TimeZone legacyZone) {
+        String queryStr = "SELECT META(c).id AS id FROM `" + bucket.name() + "` c " +
+                "WHERE c._type IN ['User', 'Company', 'Project', 'Task'] AND (c._v IS MISSING OR c._v < " + SCHEMA_VERSION + ") " +
+                "AND META(c).id > $1 ORDER BY META(c).id LIMIT $2";
+        ParameterizedN1qlQuery query = ParameterizedN1qlQuery.parameterized(queryStr, JsonArray.create().add(after).add(batchSize));
+        N1qlQueryResult queryResult = runQuery(bucket, "migrateDocuments", query);
+        if (!queryResult.finalSuccess()) {
+            throw new DataRetrievalFailureException("Query error: " + queryResult.errors());
+        }
+        Map<MigrationOutcome, Integer> outcomes = new EnumMap<MigrationOutcome, Integer>(MigrationOutcome.class);
+        for (MigrationOutcome outcome : MigrationOutcome.values()) {
+            outcomes.put(outcome, 0);
+        }
+        int scanned = 0;
+        String lastId = after;
+        for (N1qlQueryRow row : queryResult) {
+            lastId = row.value().getString("id");
+            scanned++;
+            MigrationOutcome outcome = migrateDocument(bucket, lastId, legacyZone);
+            outcomes.put(outcome, outcomes.get(outcome) + 1);
+        }
+        return JsonObject.create()
+                .put("scanned", scanned)
+                .put("migrated", outcomes.get(MigrationOutcome.MIGRATED))
+                .put("conflicted", outcomes.get(MigrationOutcome.CONFLICTED))
+                .put("unconvertible", outcomes.get(MigrationOutcome.UNCONVERTIBLE))
+                .put("lastId", lastId)
+                .toMap();
+    }
+
+    /*
+     * Upgrade a single document to the current schema version
+     */
+    private static MigrationOutcome migrateDocument(final Bucket bucket, String id, TimeZone legacyZone) {
+        for (int attempt = 1; attempt <= MIGRATION_ATTEMPTS; attempt++) {
+            JsonDocument document = bucket.get(id);
+            if (document == null) {
+                return MigrationOutcome.CURRENT;
+            }
+            JsonObject content = document.content();
+            Integer version = content.getInt("_v");
+            if (version != null && version >= SCHEMA_VERSION) {
+                return MigrationOutcome.CURRENT;
+            }
+            if (content.containsKey("createdON")) {
+                Object createdOn = toEpochMillis(content.get("createdON"), legacyZone);
+                if (createdOn == null) {
+                    LOGGER.warn("Not migrating {}: createdON {} can't be converted unambiguously", id, content.get("createdON"));
+                    return MigrationOutcome.UNCONVERTIBLE;
+                }
+                content.put("createdON", createdOn);
+            }
+            JsonArray history = content.getArray("history");
+            if (history != null) {
+                for (int i = 0; i < history.size(); i++) {
+                    JsonObject entry = history.getObject(i);
+                    if (entry != null && entry.containsKey("createdAt")) {
+                        Object createdAt = toEpochMillis(entry.get("createdAt"), legacyZone);
+                        if (createdAt == null) {
+                            LOGGER.warn("Not migrating {}: history createdAt {} can't be converted unambiguously", id, entry.get("createdAt"));
+                            return MigrationOutcome.UNCONVERTIBLE;
+                        }
+                        entry.put("createdAt", createdAt);
+                    }
+                }
+            }
+            content.put("_v", SCHEMA_VERSION);
+            try {
+                bucket.replace(JsonDocument.create(id, content, document.cas()));
+                return MigrationOutcome.MIGRATED;
+            } catch (CASMismatchException e) { }
+        }
+        LOGGER.warn("Not migrating {} yet: the document kept changing during the migration", id);
+        return MigrationOutcome.CONFLICTED;
+    }
+
+    /*
+     * Convert a timestamp written by Date.toString() into milliseconds since the epoch.  The zone abbreviation is resolved
+     * against the legacy zone first, then as a GMT offset, then against the abbreviations that name a single offset.
+     * Numbers are returned as they are.  Returns null if the value can't be parsed or its zone can't be resolved.
+     */
+    private static Object toEpochMillis(Object timestamp, TimeZone legacyZone) {
+        if (timestamp instanceof Number) {
+            return timestamp;
+        }
+        if (!(timestamp instanceof String)) {
+            return null;
+        }
+        String[] parts = ((String) timestamp).split(" ");
+        if (parts.length != 6) {
+            return null;
+        }
+        TimeZone zone;
+        if (parts[4].equals(legacyZone.getDisplayName(false, TimeZone.SHORT, Locale.US))
+                || parts[4].equals(legacyZone.getDisplayName(true, TimeZone.SHORT, Locale.US))) {
+            zone = legacyZone;
+        } else if (parts[4].matches("GMT[+-]\\d{2}:\\d{2}")) {
+            zone = TimeZone.getTimeZone(parts[4]);
+        } else if (UNAMBIGUOUS_ZONES.containsKey(parts[4])) {
+            zone = TimeZone.getTimeZone(UNAMBIGUOUS_ZONES.get(parts[4]));
+        } else {
+            return null;
+        }
+        SimpleDateFormat format = new SimpleDateFormat("EEE MMM dd HH:mm:ss yyyy", Locale.US);
+        format.setTimeZone(zone);
+        format.setLenient(false);
+        try {
+            return format.parse(parts[0] + " " + parts[1] + " " + parts[2] + " " + parts[3] + " " + parts[5]).getTime();
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+
+
+    /*
+     * ###################################################
+     * ############### Dashboard Functions ###############
+     * ###################################################
+     */
+
+
+    /*
+     * Get everything the projects page needs for a particular user in a single request.  The owned projects, other projects
+     * and assigned tasks queries are run in parallel on the executor.  None of them expand users, so owner, assignedTo and
+     * users are user ids, which is all the projects page needs.  A section that fails or times out is reported in the errors
+     * object instead of failing the whole response.
+     */
+    public static Map<String, Object> getDashboard(final Bucket bucket, ExecutorService executor, final String userId, long timeout) {
+        Map<String, Future<List<Map<String, Object>>>> sections = new LinkedHashMap<String, Future<List<Map<String, Object>>>>();
+        sections.put("projects", executor.submit(new Callable<List<Map<String, Object>>>() {
+            @Override
+            public List<Map<String, Object>> call() {
+                return getProjectsByOwnerId(bucket, userId);
+            }
+        }));
+        sections.put("otherProjects", executor.submit(new Callable<List<Map<String, Object>>>() {
+            @Override
+            public List<Map<String, Object>> call() {
+                return getOtherProjectsByUserId(bucket, userId);
+            }
+        }));
+        sections.put("assignedTasks", executor.submit(new Callable<List<Map<String, Object>>>() {
+            @Override
+            public List<Map<String, Object>> call() {
+                return getTasksAssignedToUserIdWithoutExpansion(bucket, userId);
+            }
+        }));
+
+        long deadline = System.currentTimeMillis() + timeout;
+        Map<String, Object> response = new LinkedHashMap<String, Object>();
+        Map<String, Object> errors = new LinkedHashMap<String, Object>();
+        for (Map.Entry<String, Future<List<Map<String, Object>>>> section : sections.entrySet()) {
+            try {
+                response.put(section.getKey(), section.getValue().get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS));
+            } catch (ExecutionException e) {
+                errors.put(section.getKey(), e.getCause().getMessage());
+            } catch (TimeoutException e) {
+                section.getValue().cancel(true);
+                errors.put(section.getKey(), "The request timed out");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                errors.put(section.getKey(), "The request was interrupted");
+            }
+        }
+        if (errors.size() == sections.size()) {
+            throw new DataRetrievalFailureException("Dashboard error: " + errors);
+        }
+        response.put("errors", errors);
+        return response;
+    }
+
+    /*
+     * Get many documents at once by their ids.  The gets are issued concurrently through the asynchronous bucket and
+     * documents that do not exist are left out of the result.
+     */
+    private static Map<String, JsonObject> getDocumentsByIds(final Bucket bucket, Collection<String> ids) {
+        List<JsonDocument> documents = Observable
+                .from(ids)
+                .flatMap(new Func1<String, Observable<JsonDocument>>() {
+                    @Override
+                    public Observable<JsonDocument> call(String id) {
+                        return bucket.async().get(id);
+                    }
+                })
+                .toList()
+                .toBlocking()
+                .single();
+        Map<String, JsonObject> content = new LinkedHashMap<String, JsonObject>();
+        for (JsonDocument document : documents) {
+            content.put(document.id(), document.content());
+        }
+        return content;
+    }
+
+
+    /*
+     * Pick the user properties that the expanded user subqueries select, so responses built from documents match query responses
+     */
+    private static Map<String, Object> expandUser(JsonObject user) {
+        Map<String, Object> expanded = new LinkedHashMap<String, Object>();
+        for (String name : Arrays.asList("_id", "_type", "active", "address", "company", "createdON", "name", "password", "phone")) {
+            if (user.containsKey(name)) {
+                expanded.put(name, user.get(name) instanceof JsonObject ? user.getObject(name).toMap() : user.get(name));
+            }
+        }
+        return expanded;
+    }
+
+    /*
+     * Change the content of a document and write it back with the CAS value it was read with.  If the document was
+     * modified in between, for example by a history buffer flush, it is read again and the change is reapplied.  The
+     * change is applied to a copy, so the document returned is the one that was read before the change.  Returns null
+     * if the document does not exist.
+     */
+    private static JsonDocument updateDocument(final Bucket bucket, String id, Func1<JsonObject, JsonObject> change) {
+        for (int attempt = 0; ; attempt++) {
+            JsonDocument document = bucket.get(id);
+            if (document == null) {
+                return null;
+            }
+            JsonObject content = change.call(JsonObject.from(document.content().toMap()));
+            try {
+                bucket.replace(JsonDocument.create(id, content, document.cas()));
+                return document;
+            } catch (CASMismatchException e) {
+                if (attempt >= MAX_CAS_RETRIES) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /*
+     * Run a N1QL query and hand the result, or the exception it failed with, to the query profiler along with how long it
+     * took.  The name identifies the statement in the slow query log, so every distinct statement should have its own name.
+     */
+    private static N1qlQueryResult runQuery(final Bucket bucket, String name, N1qlQuery query) {
+        long start = System.currentTimeMillis();
+        N1qlQueryResult result = null;
+        RuntimeException error = null;
+        try {
+            result = bucket.query(query);
+            return result;
+        } catch (RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            if (queryProfiler != null) {
+                queryProfiler.record(name, query, result, error, System.currentTimeMillis() - start);
+            }
+        }
+    }
+
     /*
      * Convert query results into a more friendly List object
      */
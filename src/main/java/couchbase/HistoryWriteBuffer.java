@@ -0,0 +1,266 @@
+package couchbase;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.json.JsonArray;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.error.CASMismatchException;
+import com.couchbase.client.java.error.DocumentDoesNotExistException;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+ * Coalesces history appends to the same task into a single mutation.  The first append to a task opens a batch with a
+ * window timer, every append that arrives for that task before the window closes joins the same batch, and the whole batch
+ * is written with one get and one CAS protected replace.  A batch that reaches the maximum batch size is closed and written
+ * straight away, and the next append to the task opens a new one.  Each caller blocks until the batch containing its entry
+ * has been written.  If the timeout passes before the batch starts writing, the entry is taken out of the batch and never
+ * written; once the batch is being written, the caller waits for the outcome so it always knows whether the entry was stored.
+ */
+public class HistoryWriteBuffer {
+
+    private static final int MAX_CAS_RETRIES = 10;
+
+    private final Bucket bucket;
+    private final long window;
+    private final int maxBatchSize;
+    private final int maxPending;
+    private final int maxPendingTotal;
+    private final long timeout;
+    private final ScheduledExecutorService scheduler;
+    private final Map<String, Batch> openBatches = new HashMap<String, Batch>();
+    private final Map<String, Integer> pendingByTask = new HashMap<String, Integer>();
+    private int pendingTotal = 0;
+    private boolean closed = false;
+
+    public HistoryWriteBuffer(Bucket bucket, long window, int maxBatchSize, int maxPending, int maxPendingTotal, long timeout, int threads) {
+        this.bucket = bucket;
+        this.window = window;
+        this.maxBatchSize = maxBatchSize;
+        this.maxPending = maxPending;
+        this.maxPendingTotal = maxPendingTotal;
+        this.timeout = timeout;
+        this.scheduler = Executors.newScheduledThreadPool(threads);
+    }
+
+    /*
+     * Append an entry to the history of a task and wait for it to be written.  Throws DocumentDoesNotExistException if the task does not exist, RejectedExecutionException
+     * if too many entries are already waiting on the task or on the whole buffer, or if the buffer has been closed, and
+     * TimeoutException if the batch did not start writing within the timeout, in which case the entry will not be written.
+     */
+    public void append(String taskId, JsonObject entry) throws InterruptedException, TimeoutException {
+        PendingEntry pendingEntry = new PendingEntry(entry);
+        Batch batch;
+        synchronized (this) {
+            if (closed) {
+                throw new RejectedExecutionException("The history buffer is closed");
+            }
+            if (pendingTotal >= maxPendingTotal) {
+                throw new RejectedExecutionException("Too many history entries are waiting to be written");
+            }
+            Integer pendingForTask = pendingByTask.get(taskId);
+            if (pendingForTask != null && pendingForTask >= maxPending) {
+                throw new RejectedExecutionException("Too many history entries are waiting for task " + taskId);
+            }
+            pendingByTask.put(taskId, pendingForTask == null ? 1 : pendingForTask + 1);
+            pendingTotal++;
+
+            batch = openBatches.get(taskId);
+            if (batch == null) {
+                final Batch newBatch = new Batch(taskId);
+                newBatch.timer = scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush(newBatch);
+                    }
+                }, window, TimeUnit.MILLISECONDS);
+                openBatches.put(taskId, newBatch);
+                batch = newBatch;
+            }
+            batch.entries.add(pendingEntry);
+            if (batch.entries.size() >= maxBatchSize) {
+                final Batch fullBatch = closeBatch(batch);
+                scheduler.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush(fullBatch);
+                    }
+                });
+            }
+        }
+        if (!pendingEntry.await(timeout)) {
+            synchronized (this) {
+                if (!batch.flushed) {
+                    batch.entries.remove(pendingEntry);
+                    release(taskId, 1);
+                    throw new TimeoutException("The history entry could not be written within " + timeout + " ms and has been discarded");
+                }
+            }
+            pendingEntry.await(0);
+        }
+        pendingEntry.check();
+    }
+
+    /*
+     * Stop accepting new entries and write every batch that is still open.  Called by Spring when the application shuts down.
+     */
+    public void close() throws InterruptedException {
+        List<Batch> batches;
+        synchronized (this) {
+            closed = true;
+            batches = new ArrayList<Batch>(openBatches.values());
+            for (Batch batch : batches) {
+                closeBatch(batch);
+            }
+        }
+        for (Batch batch : batches) {
+            flush(batch);
+        }
+        scheduler.shutdown();
+        scheduler.awaitTermination(window + timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /*
+     * Stop a batch from accepting entries and cancel its window timer.  Must be called while holding the buffer lock.
+     */
+    private Batch closeBatch(Batch batch) {
+        if (openBatches.get(batch.taskId) == batch) {
+            openBatches.remove(batch.taskId);
+        }
+        batch.timer.cancel(false);
+        return batch;
+    }
+
+    /*
+     * Write a batch and complete every entry in it.  A batch is only ever written once, even if its timer fires while it
+     * is being flushed for another reason.  The entries are completed whether the write succeeded or not.
+     */
+    private void flush(Batch batch) {
+        synchronized (this) {
+            if (batch.flushed) {
+                return;
+            }
+            batch.flushed = true;
+            closeBatch(batch);
+            if (batch.entries.isEmpty()) {
+                return;
+            }
+        }
+        boolean written = false;
+        RuntimeException error = null;
+        try {
+            write(batch.taskId, batch.entries);
+            written = true;
+        } catch (RuntimeException e) {
+            error = e;
+        } finally {
+            if (!written && error == null) {
+                error = new IllegalStateException("The history entries for task " + batch.taskId + " could not be written");
+            }
+            for (PendingEntry pendingEntry : batch.entries) {
+                pendingEntry.complete(error);
+            }
+            release(batch.taskId, batch.entries.size());
+        }
+    }
+
+    /*
+     * Give back the pending slots held by entries that were written or taken out of their batch
+     */
+    private synchronized void release(String taskId, int count) {
+        pendingTotal -= count;
+        int pendingForTask = pendingByTask.get(taskId) - count;
+        if (pendingForTask > 0) {
+            pendingByTask.put(taskId, pendingForTask);
+        } else {
+            pendingByTask.remove(taskId);
+        }
+    }
+
+    /*
+     * Append every entry of the batch to the task history in one mutation.  The replace uses the CAS value of the get so
+     * concurrent writers to the same task can't overwrite each other, and it is retried if the task changed in between.
+     */
+    private void write(String taskId, List<PendingEntry> entries) {
+        for (int attempt = 0; ; attempt++) {
+            JsonDocument task = bucket.get(taskId);
+            if (task == null) {
+                throw new DocumentDoesNotExistException("The task id does not exist");
+            }
+            JsonObject jsonTask = task.content();
+            JsonArray taskHistory = jsonTask.getArray("history");
+            if (taskHistory == null) {
+                taskHistory = JsonArray.create();
+            }
+            for (PendingEntry pendingEntry : entries) {
+                taskHistory.add(pendingEntry.entry);
+            }
+            jsonTask.put("history", taskHistory);
+            try {
+                bucket.replace(JsonDocument.create(taskId, jsonTask, task.cas()));
+                return;
+            } catch (CASMismatchException e) {
+                if (attempt >= MAX_CAS_RETRIES) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /*
+     * The entries waiting to be written to one task in a single mutation, along with the timer that closes the window.
+     * The entries list is only modified while holding the buffer lock and only until the batch starts writing.
+     */
+    private static class Batch {
+
+        private final String taskId;
+        private final List<PendingEntry> entries = new ArrayList<PendingEntry>();
+        private ScheduledFuture<?> timer;
+        private boolean flushed = false;
+
+        Batch(String taskId) {
+            this.taskId = taskId;
+        }
+
+    }
+
+    /*
+     * A history entry waiting for its batch to be written
+     */
+    private static class PendingEntry {
+
+        private final JsonObject entry;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private RuntimeException error;
+
+        PendingEntry(JsonObject entry) {
+            this.entry = entry;
+        }
+
+        void complete(RuntimeException error) {
+            this.error = error;
+            done.countDown();
+        }
+
+        /*
+         * Wait for the batch to be written, or for a number of milliseconds if the timeout is above zero.  Returns
+         * false if the timeout passed first.
+         */
+        boolean await(long timeout) throws InterruptedException {
+            if (timeout > 0) {
+                return done.await(timeout, TimeUnit.MILLISECONDS);
+            }
+            done.await();
+            return true;
+        }
+
+        void check() {
+            if (error != null) {
+                throw error;
+            }
+        }
+
+    }
+
+}
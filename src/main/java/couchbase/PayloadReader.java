@@ -0,0 +1,245 @@
+package couchbase;
+
+import com.couchbase.client.java.document.json.JsonArray;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.springframework.http.HttpStatus;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+
+/*
+ * Reads a JSON request body in a single streaming pass and validates it against a schema as it goes.  The body is never
+ * buffered as a whole: a body over the size limit, a property the schema doesn't know, or a value of the wrong type is
+ * rejected as soon as the parser reaches it.  The result is a map of property name to value that a payload class binds to.
+ */
+public class PayloadReader {
+
+    /*
+     * The type a schema expects the value of a property to have
+     */
+    public enum Type { STRING, STRING_ARRAY, ARRAY, OBJECT, ANY }
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private PayloadReader() { }
+
+    /*
+     * Read the body of a request against a schema.  Throws a PayloadException with the status to respond with if the
+     * body is too large, is not valid JSON, or does not match the schema.
+     */
+    public static Map<String, Object> read(HttpServletRequest request, Schema schema, int maxBytes) {
+        if (request.getContentLength() > maxBytes) {
+            throw new PayloadException(HttpStatus.PAYLOAD_TOO_LARGE, "The request body must not be larger than " + maxBytes + " bytes");
+        }
+        Map<String, Object> values = new HashMap<String, Object>();
+        try {
+            JsonParser parser = JSON_FACTORY.createParser(new LimitedInputStream(request.getInputStream(), maxBytes));
+            try {
+                if (parser.nextToken() != JsonToken.START_OBJECT) {
+                    throw new PayloadException(HttpStatus.BAD_REQUEST, "The request body must be a JSON object");
+                }
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String name = parser.getCurrentName();
+                    Type type = schema.types.get(name);
+                    if (type == null) {
+                        throw new PayloadException(HttpStatus.BAD_REQUEST, "Unknown property " + name);
+                    }
+                    if (parser.nextToken() == JsonToken.VALUE_NULL) {
+                        values.remove(name);
+                    } else {
+                        values.put(name, readValue(parser, name, type));
+                    }
+                }
+                if (parser.nextToken() != null) {
+                    throw new PayloadException(HttpStatus.BAD_REQUEST, "The request body must contain a single JSON object");
+                }
+            } finally {
+                parser.close();
+            }
+        } catch (LimitExceededException e) {
+            throw new PayloadException(HttpStatus.PAYLOAD_TOO_LARGE, "The request body must not be larger than " + maxBytes + " bytes");
+        } catch (JsonParseException e) {
+            throw new PayloadException(HttpStatus.BAD_REQUEST, "The request body is not valid JSON");
+        } catch (IOException e) {
+            throw new PayloadException(HttpStatus.BAD_REQUEST, "The request body could not be read");
+        }
+        for (Map.Entry<String, String> required : schema.required.entrySet()) {
+            if (!values.containsKey(required.getKey())) {
+                throw new PayloadException(HttpStatus.BAD_REQUEST, required.getValue());
+            }
+        }
+        return values;
+    }
+
+    /*
+     * Read the value the parser is positioned on, checking it against the type the schema expects for the property
+     */
+    private static Object readValue(JsonParser parser, String name, Type type) throws IOException {
+        JsonToken token = parser.getCurrentToken();
+        switch (type) {
+            case STRING:
+                if (token != JsonToken.VALUE_STRING) {
+                    throw new PayloadException(HttpStatus.BAD_REQUEST, "The property " + name + " must be a string");
+                }
+                return parser.getText();
+            case STRING_ARRAY:
+                if (token != JsonToken.START_ARRAY) {
+                    throw new PayloadException(HttpStatus.BAD_REQUEST, "The property " + name + " must be an array of strings");
+                }
+                List<String> strings = new ArrayList<String>();
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    if (parser.getCurrentToken() != JsonToken.VALUE_STRING) {
+                        throw new PayloadException(HttpStatus.BAD_REQUEST, "The property " + name + " must be an array of strings");
+                    }
+                    strings.add(parser.getText());
+                }
+                return Collections.unmodifiableList(strings);
+            case ARRAY:
+                if (token != JsonToken.START_ARRAY) {
+                    throw new PayloadException(HttpStatus.BAD_REQUEST, "The property " + name + " must be an array");
+                }
+                return readJson(parser);
+            case OBJECT:
+                if (token != JsonToken.START_OBJECT) {
+                    throw new PayloadException(HttpStatus.BAD_REQUEST, "The property " + name + " must be an object");
+                }
+                return readJson(parser);
+            case ANY:
+                return readJson(parser);
+            default:
+                throw new IllegalArgumentException("Unknown type " + type);
+        }
+    }
+
+    /*
+     * Read any JSON value the parser is positioned on into the types used by the Couchbase SDK
+     */
+    private static Object readJson(JsonParser parser) throws IOException {
+        switch (parser.getCurrentToken()) {
+            case START_OBJECT:
+                JsonObject object = JsonObject.create();
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String name = parser.getCurrentName();
+                    parser.nextToken();
+                    object.put(name, readJson(parser));
+                }
+                return object;
+            case START_ARRAY:
+                JsonArray array = JsonArray.create();
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    array.add(readJson(parser));
+                }
+                return array;
+            case VALUE_STRING:
+                return parser.getText();
+            case VALUE_NUMBER_INT:
+                if (parser.getNumberType() == JsonParser.NumberType.INT) {
+                    return parser.getIntValue();
+                }
+                return parser.getLongValue();
+            case VALUE_NUMBER_FLOAT:
+                return parser.getDoubleValue();
+            case VALUE_TRUE:
+            case VALUE_FALSE:
+                return parser.getBooleanValue();
+            default:
+                return null;
+        }
+    }
+
+    /*
+     * The properties a request body may contain, the type of each, and the message to respond with when a required one is missing
+     */
+    public static class Schema {
+
+        private final Map<String, Type> types = new HashMap<String, Type>();
+        private final Map<String, String> required = new LinkedHashMap<String, String>();
+
+        public Schema required(String name, Type type, String missingMessage) {
+            types.put(name, type);
+            required.put(name, missingMessage);
+            return this;
+        }
+
+        public Schema optional(String name, Type type) {
+            types.put(name, type);
+            return this;
+        }
+
+    }
+
+    /*
+     * Thrown when a request body is rejected.  Carries the HTTP status that should be returned to the client.
+     */
+    public static class PayloadException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final HttpStatus status;
+
+        public PayloadException(HttpStatus status, String message) {
+            super(message);
+            this.status = status;
+        }
+
+        public HttpStatus getStatus() {
+            return status;
+        }
+
+    }
+
+    private static class LimitExceededException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+    }
+
+    /*
+     * An input stream that fails as soon as more than a fixed number of bytes have been read from it
+     */
+    private static class LimitedInputStream extends FilterInputStream {
+
+        private long remaining;
+
+        LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1 && --remaining < 0) {
+                throw new LimitExceededException();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int count = super.read(buffer, offset, length);
+            if (count > 0 && (remaining -= count) < 0) {
+                throw new LimitExceededException();
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            if ((remaining -= skipped) < 0) {
+                throw new LimitExceededException();
+            }
+            return skipped;
+        }
+
+    }
+
+}
@@ -0,0 +1,431 @@
+package couchbase;
+
+import com.couchbase.client.java.document.json.JsonArray;
+import com.couchbase.client.java.document.json.JsonObject;
+import org.springframework.http.HttpStatus;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.*;
+
+import static couchbase.PayloadReader.*;
+import static couchbase.PayloadReader.Type.*;
+
+/*
+ * The typed request bodies of every POST endpoint.  Each payload declares the schema its body is validated against, is
+ * read straight from the request stream, and can't be modified once read.  Payloads that are persisted know how to encode
+ * the properties they carry into the content of a new document, and every document gets its own copy of any nested
+ * object or array, so changing one document never changes the payload or another document.
+ */
+public class Payloads {
+
+    private Payloads() { }
+
+    /*
+     * Add a copy of a property to document content only if it has a value
+     */
+    private static JsonObject putIfPresent(JsonObject content, String name, Object value) {
+        if (value != null) {
+            return content.put(name, copy(value));
+        }
+        return content;
+    }
+
+    /*
+     * Deep copy a value read from a request body so the document it is put into doesn't share it
+     */
+    private static Object copy(Object value) {
+        if (value instanceof JsonObject) {
+            return JsonObject.from(((JsonObject) value).toMap());
+        } else if (value instanceof JsonArray) {
+            return JsonArray.from(((JsonArray) value).toList());
+        } else if (value instanceof List) {
+            return JsonArray.from((List<?>) value);
+        }
+        return value;
+    }
+
+    /*
+     * Body of /user/create
+     */
+    public static class CreateUser {
+
+        private static final Schema SCHEMA = new Schema()
+                .required("username", STRING, "A username must exist")
+                .required("password", STRING, "A password must exist")
+                .optional("name", OBJECT)
+                .optional("address", OBJECT)
+                .optional("phone", STRING)
+                .optional("company", ANY);
+
+        private final String username;
+        private final String password;
+        private final JsonObject name;
+        private final JsonObject address;
+        private final String phone;
+        private final Object company;
+
+        private CreateUser(Map<String, Object> values) {
+            this.username = (String) values.get("username");
+            this.password = (String) values.get("password");
+            this.name = (JsonObject) values.get("name");
+            this.address = (JsonObject) values.get("address");
+            this.phone = (String) values.get("phone");
+            this.company = values.get("company");
+        }
+
+        public static CreateUser read(HttpServletRequest request, int maxBytes) {
+            return new CreateUser(PayloadReader.read(request, SCHEMA, maxBytes));
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public String getPassword() {
+            return password;
+        }
+
+        /*
+         * The document content for the user, without the password, which must be hashed before it is stored
+         */
+        public JsonObject toJson() {
+            JsonObject content = JsonObject.create().put("username", username);
+            putIfPresent(content, "name", name);
+            putIfPresent(content, "address", address);
+            putIfPresent(content, "phone", phone);
+            return putIfPresent(content, "company", company);
+        }
+
+    }
+
+    /*
+     * Body of /company/create
+     */
+    public static class CreateCompany {
+
+        private static final Schema SCHEMA = new Schema()
+                .required("website", STRING, "A website must exist")
+                .required("name", STRING, "A name must exist")
+                .optional("address", OBJECT)
+                .optional("phone", STRING);
+
+        private final String website;
+        private final String name;
+        private final JsonObject address;
+        private final String phone;
+
+        private CreateCompany(Map<String, Object> values) {
+            this.website = (String) values.get("website");
+            this.name = (String) values.get("name");
+            this.address = (JsonObject) values.get("address");
+            this.phone = (String) values.get("phone");
+        }
+
+        public static CreateCompany read(HttpServletRequest request, int maxBytes) {
+            return new CreateCompany(PayloadReader.read(request, SCHEMA, maxBytes));
+        }
+
+        public String getWebsite() {
+            return website;
+        }
+
+        public JsonObject toJson() {
+            JsonObject content = JsonObject.create().put("website", website).put("name", name);
+            putIfPresent(content, "address", address);
+            return putIfPresent(content, "phone", phone);
+        }
+
+    }
+
+    /*
+     * Body of /project/create
+     */
+    public static class CreateProject {
+
+        private static final Schema SCHEMA = new Schema()
+                .required("owner", STRING, "An owner must exist")
+                .required("users", STRING_ARRAY, "Users must exist")
+                .required("name", STRING, "A name must exist")
+                .required("description", STRING, "A description must exist")
+                .optional("tasks", STRING_ARRAY)
+                .optional("permalink", STRING);
+
+        private final String owner;
+        private final List<String> users;
+        private final String name;
+        private final String description;
+        private final List<String> tasks;
+        private final String permalink;
+
+        @SuppressWarnings("unchecked")
+        private CreateProject(Map<String, Object> values) {
+            this.owner = (String) values.get("owner");
+            this.users = (List<String>) values.get("users");
+            this.name = (String) values.get("name");
+            this.description = (String) values.get("description");
+            this.tasks = values.containsKey("tasks") ? (List<String>) values.get("tasks") : Collections.<String>emptyList();
+            this.permalink = (String) values.get("permalink");
+        }
+
+        public static CreateProject read(HttpServletRequest request, int maxBytes) {
+            return new CreateProject(PayloadReader.read(request, SCHEMA, maxBytes));
+        }
+
+        public String getOwner() {
+            return owner;
+        }
+
+        public List<String> getUsers() {
+            return users;
+        }
+
+        public JsonObject toJson() {
+            JsonObject content = JsonObject.create().put("owner", owner).put("name", name).put("description", description);
+            putIfPresent(content, "users", users);
+            putIfPresent(content, "tasks", tasks);
+            return putIfPresent(content, "permalink", permalink);
+        }
+
+    }
+
+    /*
+     * Body of /project/addUser
+     */
+    public static class ProjectAddUser {
+
+        private static final Schema SCHEMA = new Schema()
+                .required("username", STRING, "An username must exist")
+                .required("projectId", STRING, "A project id must exist");
+
+        private final String username;
+        private final String projectId;
+
+        private ProjectAddUser(Map<String, Object> values) {
+            this.username = (String) values.get("username");
+            this.projectId = (String) values.get("projectId");
+        }
+
+        public static ProjectAddUser read(HttpServletRequest request, int maxBytes) {
+            return new ProjectAddUser(PayloadReader.read(request, SCHEMA, maxBytes));
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public String getProjectId() {
+            return projectId;
+        }
+
+    }
+
+    /*
+     * Body of /task/create/{projectId}.  A new task always starts with an empty history, so history may be sent but must
+     * be empty; entries are only added through /task/addHistory, which stamps them with the server time.
+     */
+    public static class CreateTask {
+
+        private static final Schema SCHEMA = new Schema()
+                .required("users", STRING_ARRAY, "Users must exist")
+                .required("owner", STRING, "An owner must exist")
+                .optional("name", STRING)
+                .optional("description", STRING)
+                .optional("assignedTo", STRING)
+                .optional("history", ARRAY)
+                .optional("permalink", STRING);
+
+        private final List<String> users;
+        private final String owner;
+        private final String name;
+        private final String description;
+        private final String assignedTo;
+        private final String permalink;
+
+        @SuppressWarnings("unchecked")
+        private CreateTask(Map<String, Object> values) {
+            this.users = (List<String>) values.get("users");
+            this.owner = (String) values.get("owner");
+            this.name = (String) values.get("name");
+            this.description = (String) values.get("description");
+            this.assignedTo = (String) values.get("assignedTo");
+            this.permalink = (String) values.get("permalink");
+        }
+
+        public static CreateTask read(HttpServletRequest request, int maxBytes) {
+            Map<String, Object> values = PayloadReader.read(request, SCHEMA, maxBytes);
+            if (values.containsKey("history") && !((JsonArray) values.get("history")).isEmpty()) {
+                throw new PayloadException(HttpStatus.BAD_REQUEST, "A new task must have an empty history");
+            }
+            return new CreateTask(values);
+        }
+
+        public List<String> getUsers() {
+            return users;
+        }
+
+        public String getOwner() {
+            return owner;
+        }
+
+        public String getAssignedTo() {
+            return assignedTo;
+        }
+
+        public JsonObject toJson() {
+            JsonObject content = JsonObject.create().put("owner", owner).put("history", JsonArray.create());
+            putIfPresent(content, "users", users);
+            putIfPresent(content, "name", name);
+            putIfPresent(content, "description", description);
+            putIfPresent(content, "assignedTo", assignedTo);
+            return putIfPresent(content, "permalink", permalink);
+        }
+
+    }
+
+    /*
+     * Body of /task/addUser
+     */
+    public static class TaskAddUser {
+
+        private static final Schema SCHEMA = new Schema()
+                .required("username", STRING, "A username must exist")
+                .required("taskId", STRING, "A task id must exist");
+
+        private final String username;
+        private final String taskId;
+
+        private TaskAddUser(Map<String, Object> values) {
+            this.username = (String) values.get("username");
+            this.taskId = (String) values.get("taskId");
+        }
+
+        public static TaskAddUser read(HttpServletRequest request, int maxBytes) {
+            return new TaskAddUser(PayloadReader.read(request, SCHEMA, maxBytes));
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public String getTaskId() {
+            return taskId;
+        }
+
+    }
+
+    /*
+     * Body of /task/assignUser
+     */
+    public static class TaskAssignUser {
+
+        private static final Schema SCHEMA = new Schema()
+                .required("userId", STRING, "A user id must exist")
+                .required("taskId", STRING, "A task id must exist");
+
+        private final String userId;
+        private final String taskId;
+
+        private TaskAssignUser(Map<String, Object> values) {
+            this.userId = (String) values.get("userId");
+            this.taskId = (String) values.get("taskId");
+        }
+
+        public static TaskAssignUser read(HttpServletRequest request, int maxBytes) {
+            return new TaskAssignUser(PayloadReader.read(request, SCHEMA, maxBytes));
+        }
+
+        public String getUserId() {
+            return userId;
+        }
+
+        public String getTaskId() {
+            return taskId;
+        }
+
+    }
+
+    /*
+     * Body of /task/addHistory
+     */
+    public static class TaskAddHistory {
+
+        private static final Schema SCHEMA = new Schema()
+                .required("taskId", STRING, "A task id must exist")
+                .required("userId", STRING, "A user id must exist")
+                .required("log", STRING, "A log must exist");
+
+        private final String taskId;
+        private final String userId;
+        private final String log;
+
+        private TaskAddHistory(Map<String, Object> values) {
+            this.taskId = (String) values.get("taskId");
+            this.userId = (String) values.get("userId");
+            this.log = (String) values.get("log");
+        }
+
+        public static TaskAddHistory read(HttpServletRequest request, int maxBytes) {
+            return new TaskAddHistory(PayloadReader.read(request, SCHEMA, maxBytes));
+        }
+
+        public String getTaskId() {
+            return taskId;
+        }
+
+        public String getUserId() {
+            return userId;
+        }
+
+        public String getLog() {
+            return log;
+        }
+
+        /*
+         * The history entry to append to the task, created at a particular time
+         */
+        public JsonObject toJson(long createdAt) {
+            return JsonObject.create().put("log", log).put("user", userId).put("createdAt", createdAt);
+        }
+
+    }
+
+    /*
+     * Body of /stats/get
+     */
+    public static class GetStats {
+
+        private static final Schema SCHEMA = new Schema()
+                .optional("projects", STRING_ARRAY)
+                .optional("tasks", STRING_ARRAY)
+                .optional("users", STRING_ARRAY);
+
+        private final Map<String, List<String>> ids;
+
+        @SuppressWarnings("unchecked")
+        private GetStats(Map<String, Object> values) {
+            Map<String, List<String>> ids = new HashMap<String, List<String>>();
+            for (Map.Entry<String, Object> value : values.entrySet()) {
+                ids.put(value.getKey(), (List<String>) value.getValue());
+            }
+            this.ids = Collections.unmodifiableMap(ids);
+        }
+
+        public static GetStats read(HttpServletRequest request, int maxBytes) {
+            GetStats payload = new GetStats(PayloadReader.read(request, SCHEMA, maxBytes));
+            if (payload.ids.isEmpty()) {
+                throw new PayloadException(HttpStatus.BAD_REQUEST, "Projects, tasks or users must exist");
+            }
+            return payload;
+        }
+
+        /*
+         * Get the ids requested for a kind of document, such as "users", or an empty list if none were requested
+         */
+        public List<String> getIds(String kind) {
+            List<String> kindIds = ids.get(kind);
+            return kindIds == null ? Collections.<String>emptyList() : kindIds;
+        }
+
+    }
+
+}
@@ -0,0 +1,224 @@
+package couchbase;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.json.JsonArray;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.document.json.JsonValue;
+import com.couchbase.client.java.query.*;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.regex.Pattern;
+
+/*
+ * Records N1QL queries that take longer than a threshold, and every query that fails.  Each record holds the statement
+ * name and text, the parameters with secrets redacted, the metrics returned by the query service or the exception the
+ * query failed with, and the EXPLAIN plan of the statement.  Only the most recent records are kept.  Plans are captured on
+ * a background thread and filled into the records once they arrive, so a slow request never waits for an EXPLAIN, and a
+ * statement is explained at most once per explain interval so a burst of slow queries does not turn into a burst of
+ * EXPLAIN requests.
+ */
+public class QueryProfiler {
+
+    private static final Pattern SECRET_NAME = Pattern.compile("(?i).*(password|secret|token).*");
+    private static final Pattern SECRET_VALUE = Pattern.compile("^\\$2[aby]?\\$.*");
+
+    private final Bucket bucket;
+    private final long threshold;
+    private final int capacity;
+    private final long explainInterval;
+    private final ExecutorService explainer = Executors.newSingleThreadExecutor();
+    private final LinkedList<Map<String, Object>> slowQueries = new LinkedList<Map<String, Object>>();
+    private final Map<String, Long> explainedAt = new HashMap<String, Long>();
+    private final Map<String, Object> plans = new HashMap<String, Object>();
+    private final Map<String, List<Map<String, Object>>> awaitingPlan = new HashMap<String, List<Map<String, Object>>>();
+
+    public QueryProfiler(Bucket bucket, long threshold, int capacity, long explainInterval) {
+        this.bucket = bucket;
+        this.threshold = threshold;
+        this.capacity = capacity;
+        this.explainInterval = explainInterval;
+    }
+
+    /*
+     * Record a query if it failed or took at least as long as the threshold.  A query fails either by throwing, in which
+     * case error is set, or by returning a result without final success, which is how the query service reports errors.
+     * Fast successful queries return immediately without any extra work.
+     */
+    public void record(String name, N1qlQuery query, N1qlQueryResult result, Throwable error, long elapsed) {
+        if (elapsed < threshold && error == null && result != null && result.finalSuccess()) {
+            return;
+        }
+        Map<String, Object> slowQuery = new LinkedHashMap<String, Object>();
+        slowQuery.put("name", name);
+        slowQuery.put("statement", query.statement().toString());
+        slowQuery.put("parameters", redact(parameters(query)));
+        slowQuery.put("elapsed", elapsed);
+        slowQuery.put("recordedAt", System.currentTimeMillis());
+        if (result != null) {
+            slowQuery.put("status", result.status());
+            slowQuery.put("metrics", result.info().asJsonObject().toMap());
+            if (!result.errors().isEmpty()) {
+                slowQuery.put("errors", result.errors().toString());
+            }
+        } else {
+            slowQuery.put("status", "exception");
+            slowQuery.put("errors", String.valueOf(error));
+        }
+        slowQuery.put("plan", null);
+        boolean explain = false;
+        synchronized (slowQueries) {
+            Long lastExplained = explainedAt.get(name);
+            if (lastExplained != null && System.currentTimeMillis() - lastExplained < explainInterval) {
+                slowQuery.put("plan", plans.get(name));
+            } else {
+                List<Map<String, Object>> awaiting = awaitingPlan.get(name);
+                if (awaiting == null) {
+                    awaiting = new ArrayList<Map<String, Object>>();
+                    awaitingPlan.put(name, awaiting);
+                    explain = true;
+                }
+                awaiting.add(slowQuery);
+            }
+            slowQueries.addFirst(slowQuery);
+            while (slowQueries.size() > capacity) {
+                slowQueries.removeLast();
+            }
+        }
+        if (explain) {
+            explainLater(name, query);
+        }
+    }
+
+    /*
+     * Get copies of the recorded slow queries, most recent first.  A record whose plan is still being captured has a null plan.
+     */
+    public List<Map<String, Object>> getSlowQueries() {
+        synchronized (slowQueries) {
+            List<Map<String, Object>> copies = new ArrayList<Map<String, Object>>();
+            for (Map<String, Object> slowQuery : slowQueries) {
+                copies.add(new LinkedHashMap<String, Object>(slowQuery));
+            }
+            return copies;
+        }
+    }
+
+    /*
+     * Stop capturing plans.  Called by Spring when the application shuts down.
+     */
+    public void close() {
+        explainer.shutdownNow();
+    }
+
+    /*
+     * Capture the EXPLAIN plan of a statement on the background thread, then fill it into every record that is waiting
+     * for it and keep it for the records of the next explain interval
+     */
+    private void explainLater(final String name, final N1qlQuery query) {
+        try {
+            explainer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Object plan = explain(query);
+                    synchronized (slowQueries) {
+                        plans.put(name, plan);
+                        explainedAt.put(name, System.currentTimeMillis());
+                        List<Map<String, Object>> awaiting = awaitingPlan.remove(name);
+                        if (awaiting != null) {
+                            for (Map<String, Object> slowQuery : awaiting) {
+                                slowQuery.put("plan", plan);
+                            }
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            synchronized (slowQueries) {
+                awaitingPlan.remove(name);
+            }
+        }
+    }
+
+    /*
+     * Ask the query service for the plan of a query, or describe why it could not be explained
+     */
+    private Object explain(N1qlQuery query) {
+        try {
+            N1qlQueryResult result = bucket.query(explainQuery(query));
+            if (result.finalSuccess()) {
+                List<Object> rows = new ArrayList<Object>();
+                for (N1qlQueryRow row : result) {
+                    rows.add(row.value().toMap());
+                }
+                return rows;
+            }
+            return "EXPLAIN error: " + result.errors();
+        } catch (Exception e) {
+            return "EXPLAIN error: " + e.getMessage();
+        }
+    }
+
+    /*
+     * Build the EXPLAIN query for a query, keeping its parameters so placeholders can be resolved
+     */
+    private static N1qlQuery explainQuery(N1qlQuery query) {
+        String statement = "EXPLAIN " + query.statement().toString();
+        JsonValue parameters = parameters(query);
+        if (parameters instanceof JsonArray) {
+            return N1qlQuery.parameterized(statement, (JsonArray) parameters);
+        } else if (parameters instanceof JsonObject) {
+            return N1qlQuery.parameterized(statement, (JsonObject) parameters);
+        }
+        return N1qlQuery.simple(statement);
+    }
+
+    /*
+     * Get the parameters of a query, or null if the query is not parameterized
+     */
+    private static JsonValue parameters(N1qlQuery query) {
+        if (query instanceof ParameterizedN1qlQuery) {
+            return ((ParameterizedN1qlQuery) query).statementParameters();
+        }
+        return null;
+    }
+
+    /*
+     * Copy query parameters with anything that looks secret replaced.  Named parameters are redacted by name and positional
+     * parameters are redacted when the value looks like a Bcrypt hash.
+     */
+    private static Object redact(JsonValue parameters) {
+        if (parameters instanceof JsonArray) {
+            List<Object> redacted = new ArrayList<Object>();
+            for (Object value : (JsonArray) parameters) {
+                redacted.add(value instanceof String && SECRET_VALUE.matcher((String) value).matches() ? "<redacted>" : plain(value));
+            }
+            return redacted;
+        } else if (parameters instanceof JsonObject) {
+            Map<String, Object> redacted = new LinkedHashMap<String, Object>();
+            for (String name : ((JsonObject) parameters).getNames()) {
+                Object value = ((JsonObject) parameters).get(name);
+                if (SECRET_NAME.matcher(name).matches() || (value instanceof String && SECRET_VALUE.matcher((String) value).matches())) {
+                    value = "<redacted>";
+                }
+                redacted.put(name, plain(value));
+            }
+            return redacted;
+        }
+        return null;
+    }
+
+    /*
+     * Convert nested JSON values into plain maps and lists so they can be returned from an endpoint
+     */
+    private static Object plain(Object value) {
+        if (value instanceof JsonObject) {
+            return ((JsonObject) value).toMap();
+        } else if (value instanceof JsonArray) {
+            return ((JsonArray) value).toList();
+        }
+        return value;
+    }
+
+}